@@ -107,6 +107,16 @@ public final class Configurator {
     public static final String CACHE_TIMEOUT = "cache.timeout";
     public static final String FILE_POLLING_GOOGLE = "file.polling.google";
     public static final String LDAP_PORT = "ldap.port";
+    public static final String LDAP_IO_THREADS = "ldap.io.threads";
+    public static final String LDAP_WORKER_THREADS = "ldap.worker.threads";
+    public static final String LDAP_WORKER_QUEUE = "ldap.worker.queue";
+    public static final String LDAP_MAX_CONNECTIONS = "ldap.max.connections";
+    public static final String LDAP_IDLE_TIMEOUT = "ldap.idle.timeout";
+    public static final String LDAP_MAX_PDU_SIZE = "ldap.max.pdu.size";
+    public static final String LDAP_SEARCH_CACHE_SIZE = "ldap.search.cache.size";
+    public static final String LDAP_SEARCH_CHUNK_SIZE = "ldap.search.chunk.size";
+    public static final String LDAP_FUZZY_RESULTS = "ldap.fuzzy.results";
+    public static final String LDAP_FUZZY_THRESHOLD = "ldap.fuzzy.threshold";
     public static final String EDITOR_LANGUAGE = "editor.language";
     public static final String EDITOR_LOOK_AND_FEEL = "editor.look.and.feel";
     public static final String WORK_DIR = "work.dir";
@@ -617,19 +627,13 @@ public final class Configurator {
         if (contactLoader != null) {
             ContactLoader loader = (ContactLoader) contactLoader;
             try {
-                contacts = loader.getContacts();
                 if (!started) {
                     started = true;
-                    if (contacts == null) {
-                        for (int i = 0; i < 5; i++) {
-                            contacts = loader.getContacts();
-                            if (contacts != null) {
-                                break;
-                            }
-                            Thread.sleep(2000);
-                        }
-                    }
+
+                    // Wait for the persisted list (or the first download)
+                    loader.awaitReady(10000L);
                 }
+                contacts = loader.getContacts();
             } catch (InterruptedException interrupt) {
                 throw interrupt;
             } catch (Exception ignored) {
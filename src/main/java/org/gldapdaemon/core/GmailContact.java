@@ -44,6 +44,9 @@ public final class GmailContact implements Serializable {
     public String other = "";
     public String address = "";
 
+    public GmailContact() {
+    }
+
     public GmailContact(ContactEntry entry) {
         if (entry.getName() != null && entry.getName().getFullName() != null) {
             name = entry.getName().getFullName().getValue();
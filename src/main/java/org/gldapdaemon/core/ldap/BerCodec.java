@@ -0,0 +1,140 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal BER (X.690) helpers for framing and encoding LDAP messages on the
+ * wire.
+ */
+final class BerCodec {
+
+    // --- CONSTANTS ---
+    static final int SEQUENCE_TAG = 0x30;
+    static final int SET_TAG = 0x31;
+    static final int INTEGER_TAG = 0x02;
+    static final int OCTET_STRING_TAG = 0x04;
+    static final int ENUMERATED_TAG = 0x0a;
+
+    private BerCodec() {
+    }
+
+    // --- FRAMING ---
+
+    /**
+     * Returns the total length (tag, length and value bytes) of the LDAP
+     * message starting at the given offset, or -1 if the header is not
+     * complete yet.
+     */
+    static final int frameLength(byte[] bytes, int offset, int available) throws IOException {
+        if (available < 2) {
+            return -1;
+        }
+        if ((bytes[offset] & 0xff) != SEQUENCE_TAG) {
+            throw new IOException("Malformed LDAP message (invalid tag)!");
+        }
+        int first = bytes[offset + 1] & 0xff;
+        if (first < 0x80) {
+            return 2 + first;
+        }
+        int count = first & 0x7f;
+        if (count == 0 || count > 4) {
+            throw new IOException("Malformed LDAP message (invalid length)!");
+        }
+        if (available < 2 + count) {
+            return -1;
+        }
+        long length = 0;
+        for (int i = 0; i < count; i++) {
+            length = (length << 8) | (bytes[offset + 2 + i] & 0xff);
+        }
+        length += 2 + count;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Malformed LDAP message (too long)!");
+        }
+        return (int) length;
+    }
+
+    // --- ENCODING ---
+
+    /**
+     * Returns the number of bytes of a TLV with the given value length.
+     */
+    static final int sizeOf(int length) {
+        if (length < 0x80) {
+            return 2 + length;
+        }
+        if (length < 0x100) {
+            return 3 + length;
+        }
+        if (length < 0x10000) {
+            return 4 + length;
+        }
+        if (length < 0x1000000) {
+            return 5 + length;
+        }
+        return 6 + length;
+    }
+
+    static final void writeHeader(ByteBuffer out, int tag, int length) {
+        out.put((byte) tag);
+        if (length < 0x80) {
+            out.put((byte) length);
+        } else if (length < 0x100) {
+            out.put((byte) 0x81);
+            out.put((byte) length);
+        } else if (length < 0x10000) {
+            out.put((byte) 0x82);
+            out.putShort((short) length);
+        } else if (length < 0x1000000) {
+            out.put((byte) 0x83);
+            out.put((byte) (length >> 16));
+            out.putShort((short) length);
+        } else {
+            out.put((byte) 0x84);
+            out.putInt(length);
+        }
+    }
+
+    /**
+     * Returns the number of value bytes of a (non-negative) INTEGER.
+     */
+    static final int integerLength(int value) {
+        if (value < 0x80) {
+            return 1;
+        }
+        if (value < 0x8000) {
+            return 2;
+        }
+        if (value < 0x800000) {
+            return 3;
+        }
+        return 4;
+    }
+
+    static final void writeInteger(ByteBuffer out, int tag, int value) {
+        int length = integerLength(value);
+        out.put((byte) tag);
+        out.put((byte) length);
+        for (int i = length - 1; i >= 0; i--) {
+            out.put((byte) (value >> (i * 8)));
+        }
+    }
+
+    static final void writeOctetString(ByteBuffer out, byte[] value) {
+        writeHeader(out, OCTET_STRING_TAG, value.length);
+        out.put(value);
+    }
+}
@@ -0,0 +1,127 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.io.IOException;
+
+/**
+ * Forward-only reader of BER encoded TLVs (used for the parts of an LDAP
+ * message the decoder does not expose, eg. the request controls).
+ */
+final class BerReader {
+
+    // --- VARIABLES ---
+    private final byte[] bytes;
+    private int position;
+    private int limit;
+
+    // --- CONSTRUCTOR ---
+    BerReader(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    final boolean hasRemaining() {
+        return position < limit;
+    }
+
+    final int position() {
+        return position;
+    }
+
+    final int peekTag() throws IOException {
+        if (position >= limit) {
+            throw new IOException("Unexpected end of BER data!");
+        }
+        return bytes[position] & 0xff;
+    }
+
+    final int readTag() throws IOException {
+        int tag = peekTag();
+        position++;
+        return tag;
+    }
+
+    final int readLength() throws IOException {
+        if (position >= limit) {
+            throw new IOException("Unexpected end of BER data!");
+        }
+        int first = bytes[position++] & 0xff;
+        if (first < 0x80) {
+            return checkLength(first);
+        }
+        int count = first & 0x7f;
+        if (count == 0 || count > 4 || position + count > limit) {
+            throw new IOException("Invalid BER length!");
+        }
+        long length = 0;
+        for (int i = 0; i < count; i++) {
+            length = (length << 8) | (bytes[position++] & 0xff);
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid BER length!");
+        }
+        return checkLength((int) length);
+    }
+
+    private final int checkLength(int length) throws IOException {
+        if (position + length > limit) {
+            throw new IOException("Truncated BER data!");
+        }
+        return length;
+    }
+
+    /**
+     * Enters a constructed TLV; the reader is limited to its content.
+     * Returns the previous limit, to be passed to {@link #leave(int)}.
+     */
+    final int enter(int length) {
+        int previous = limit;
+        limit = position + length;
+        return previous;
+    }
+
+    final void leave(int previousLimit) {
+        position = limit;
+        limit = previousLimit;
+    }
+
+    final void skip(int length) {
+        position += length;
+    }
+
+    final int readInteger(int length) throws IOException {
+        if (length < 1 || length > 4) {
+            throw new IOException("Invalid BER integer!");
+        }
+        int value = bytes[position++];
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (bytes[position++] & 0xff);
+        }
+        return value;
+    }
+
+    final byte[] readBytes(int length) {
+        byte[] value = new byte[length];
+        System.arraycopy(bytes, position, value, 0, length);
+        position += length;
+        return value;
+    }
+
+    final String readString(int length) throws IOException {
+        String value = new String(bytes, position, length, "UTF-8");
+        position += length;
+        return value;
+    }
+}
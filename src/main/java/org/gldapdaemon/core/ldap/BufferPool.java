@@ -0,0 +1,82 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool of direct output buffers, organized into size classes.
+ */
+final class BufferPool {
+
+    // --- CONSTANTS ---
+    static final int SMALL = 256;
+    static final int MEDIUM = 4096;
+    static final int LARGE = 16384;
+    private static final int[] SIZES = {SMALL, MEDIUM, LARGE};
+    private static final int[] LIMITS = {1024, 256, 128};
+    // --- VARIABLES ---
+    private final SizeClass[] classes = new SizeClass[SIZES.length];
+
+    // --- CONSTRUCTOR ---
+    BufferPool() {
+        for (int i = 0; i < SIZES.length; i++) {
+            classes[i] = new SizeClass();
+        }
+    }
+
+    // --- BORROW BUFFER ---
+    final ByteBuffer acquire(int size) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (size <= SIZES[i]) {
+                ByteBuffer buffer = classes[i].free.poll();
+                if (buffer == null) {
+                    return ByteBuffer.allocateDirect(SIZES[i]);
+                }
+                classes[i].count.decrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+        }
+
+        // Oversized buffers are not pooled
+        return ByteBuffer.allocate(size);
+    }
+
+    // --- RECYCLE BUFFER ---
+    final void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        for (int i = 0; i < SIZES.length; i++) {
+            if (capacity == SIZES[i]) {
+                SizeClass sizeClass = classes[i];
+                if (sizeClass.count.get() < LIMITS[i]) {
+                    sizeClass.count.incrementAndGet();
+                    sizeClass.free.add(buffer);
+                }
+                return;
+            }
+        }
+    }
+
+    // --- FREE BUFFERS OF A SIZE CLASS ---
+    private static final class SizeClass {
+
+        private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicInteger count = new AtomicInteger();
+    }
+}
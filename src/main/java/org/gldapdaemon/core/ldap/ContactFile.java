@@ -0,0 +1,340 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Read-only contact list file, served by the LDAP listener through a memory
+ * mapping (without reading the contacts onto the heap). A mapped file can
+ * not be replaced or removed on some platforms, so every list is written to
+ * a new file ("contacts-N.map", the highest number is the newest) and the
+ * older files are removed on a best-effort basis. Layout:
+ *
+ * <pre>
+ * header:   magic, version, contacts, fields, accounts (int)
+ * accounts: start of each account's contacts and the size of the list (int),
+ *           then the addresses (UTF-8 length as short, UTF-8 bytes)
+ * offsets:  field by field, the position of each contact's value and the
+ *           end of the last one (int)
+ * blobs:    the UTF-8 values, field by field
+ * </pre>
+ */
+final class ContactFile {
+
+    // --- CONSTANTS ---
+    private static final String PREFIX = "contacts-";
+    private static final String EXTENSION = ".map";
+    private static final int MAGIC = 0x474c444d;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 65536;
+    private static final Comparator<File> NEWEST_FIRST = new Comparator<File>() {
+
+        public final int compare(File a, File b) {
+            long x = number(a);
+            long y = number(b);
+            return x > y ? -1 : x < y ? 1 : 0;
+        }
+    };
+    // --- VARIABLES ---
+    final ContactTable contacts;
+    final String[] accounts;
+    final int[] bounds;
+
+    // --- CONSTRUCTOR ---
+    private ContactFile(ContactTable contacts, String[] accounts, int[] bounds) {
+        this.contacts = contacts;
+        this.accounts = accounts;
+        this.bounds = bounds;
+    }
+
+    // --- FILE WRITER ---
+
+    /**
+     * Writes the contact list and its partitions (the contacts of the
+     * accounts are stored one after the other) into a new file of the
+     * directory, then tries to remove the older files. A file that is
+     * still mapped can not be removed on some platforms; it is left in place
+     * and removed by a later write.
+     */
+    static final void write(File directory, ContactTable contacts, String[] accounts, int[] bounds)
+            throws IOException {
+        File[] files = list(directory);
+        long number = files.length == 0 ? 1 : number(files[0]) + 1;
+        File file = new File(directory, PREFIX + number + EXTENSION);
+        int size = contacts.size();
+        int fields = ContactTable.FIELDS;
+
+        // Position of the blobs
+        byte[][] names = new byte[accounts.length][];
+        long position = 20 + 4L * (accounts.length + 1);
+        for (int i = 0; i < accounts.length; i++) {
+            names[i] = accounts[i].getBytes("UTF-8");
+            position += 2 + names[i].length;
+        }
+        position += 4L * fields * (size + 1);
+
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        boolean written = false;
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+            // Header and partitions
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(size);
+            buffer.putInt(fields);
+            buffer.putInt(accounts.length);
+            for (int i = 0; i <= accounts.length; i++) {
+                flush(channel, buffer, 4);
+                buffer.putInt(bounds[i]);
+            }
+            for (int i = 0; i < accounts.length; i++) {
+                flush(channel, buffer, 2);
+                buffer.putShort((short) names[i].length);
+                put(channel, buffer, names[i]);
+            }
+
+            // Offsets
+            for (int field = 0; field < fields; field++) {
+                for (int i = 0; i < size; i++) {
+                    flush(channel, buffer, 4);
+                    buffer.putInt((int) position);
+                    position += utf8Length(contacts.get(i, field));
+                }
+                if (position > Integer.MAX_VALUE) {
+                    throw new IOException("Contact list is too large!");
+                }
+                flush(channel, buffer, 4);
+                buffer.putInt((int) position);
+            }
+
+            // Blobs
+            for (int field = 0; field < fields; field++) {
+                for (int i = 0; i < size; i++) {
+                    String value = contacts.get(i, field);
+                    for (int n = 0; n < value.length(); n++) {
+                        flush(channel, buffer, 4);
+                        n = encode(value, n, buffer);
+                    }
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            written = true;
+        } finally {
+            raf.close();
+            if (!written) {
+                temp.delete();
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp + "!");
+        }
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+
+    /**
+     * Returns the contact files of the directory, newest first.
+     */
+    static final File[] list(File directory) {
+        File[] files = directory.listFiles();
+        ArrayList<File> list = new ArrayList<File>();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (number(files[i]) > 0 && files[i].isFile()) {
+                list.add(files[i]);
+            }
+        }
+        File[] sorted = list.toArray(new File[list.size()]);
+        Arrays.sort(sorted, NEWEST_FIRST);
+        return sorted;
+    }
+
+    /**
+     * Returns the number of a contact file, or -1 if the file is not a
+     * contact file.
+     */
+    private static final long number(File file) {
+        String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(EXTENSION)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - EXTENSION.length()));
+        } catch (NumberFormatException invalidName) {
+            return -1;
+        }
+    }
+
+    private static final void flush(FileChannel channel, ByteBuffer buffer, int space) throws IOException {
+        if (buffer.remaining() < space) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private static final void put(FileChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException {
+        for (int i = 0; i < bytes.length; i += BUFFER_SIZE) {
+            int length = Math.min(bytes.length - i, BUFFER_SIZE);
+            flush(channel, buffer, length);
+            buffer.put(bytes, i, length);
+        }
+    }
+
+    /**
+     * Returns the length of the UTF-8 form (surrogate pairs are encoded in 4
+     * bytes, single surrogates in 3 bytes, so every value is decoded as it
+     * is).
+     */
+    static final int utf8Length(String value) {
+        int length = 0;
+        char c;
+        for (int i = 0; i < value.length(); i++) {
+            c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes the character (or surrogate pair) at the index, and returns the
+     * index of its last char.
+     */
+    static final int encode(String value, int index, ByteBuffer buffer) {
+        char c = value.charAt(index);
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else if (c < 0x800) {
+            buffer.put((byte) (0xc0 | c >> 6));
+            buffer.put((byte) (0x80 | c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int code = Character.toCodePoint(c, value.charAt(++index));
+            buffer.put((byte) (0xf0 | code >> 18));
+            buffer.put((byte) (0x80 | code >> 12 & 0x3f));
+            buffer.put((byte) (0x80 | code >> 6 & 0x3f));
+            buffer.put((byte) (0x80 | code & 0x3f));
+        } else {
+            buffer.put((byte) (0xe0 | c >> 12));
+            buffer.put((byte) (0x80 | c >> 6 & 0x3f));
+            buffer.put((byte) (0x80 | c & 0x3f));
+        }
+        return index;
+    }
+
+    // --- FILE READER ---
+
+    /**
+     * Maps the contact file. The header and the offsets are verified, the
+     * values are decoded from the mapping when they are read.
+     */
+    static final ContactFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer mapped;
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Invalid contact file (too large)!");
+            }
+
+            // The mapping remains valid after the file is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        try {
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION
+                    || mapped.getInt(12) != ContactTable.FIELDS) {
+                throw new IOException("Invalid contact file header!");
+            }
+            int size = mapped.getInt(8);
+            int count = mapped.getInt(16);
+
+            // The partitions and the offsets must fit into the file
+            int limit = (mapped.limit() - 20) / 4;
+            if (size < 0 || count < 0 || count >= limit || size >= limit / ContactTable.FIELDS) {
+                throw new IOException("Invalid contact file header!");
+            }
+
+            // Partitions
+            int[] bounds = new int[count + 1];
+            int position = 20;
+            for (int i = 0; i <= count; i++) {
+                bounds[i] = mapped.getInt(position);
+                position += 4;
+                if (bounds[i] < (i == 0 ? 0 : bounds[i - 1]) || bounds[i] > size) {
+                    throw new IOException("Invalid contact file partitions!");
+                }
+            }
+            String[] accounts = new String[count];
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[mapped.getShort(position) & 0xffff];
+                position += 2;
+                for (int n = 0; n < bytes.length; n++) {
+                    bytes[n] = mapped.get(position++);
+                }
+                accounts[i] = new String(bytes, "UTF-8");
+            }
+
+            // Offsets (increasing, within the blobs)
+            int table = position;
+            long blobs = table + 4L * ContactTable.FIELDS * (size + 1);
+            int previous = (int) Math.min(blobs, Integer.MAX_VALUE);
+            int offset;
+            for (int i = 0; i < ContactTable.FIELDS * (size + 1); i++) {
+                offset = mapped.getInt(position);
+                position += 4;
+                if (offset < previous || offset > mapped.limit()) {
+                    throw new IOException("Invalid contact file offsets!");
+                }
+                previous = offset;
+            }
+            if (previous != mapped.limit()) {
+                throw new IOException("Truncated contact file!");
+            }
+            return new ContactFile(new ContactTable(mapped, size, table), accounts, bounds);
+        } catch (IndexOutOfBoundsException truncated) {
+            throw new IOException("Truncated contact file!");
+        }
+    }
+}
@@ -13,16 +13,16 @@
 package org.gldapdaemon.core.ldap;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.codec.net.QuotedPrintableCodec;
 import org.apache.commons.logging.Log;
@@ -62,7 +62,8 @@ public final class ContactLoader extends Thread {
     private final String vcardVersion;
     private final String[] usernames;
     private final String[] passwords;
-    private volatile ArrayList<GmailContact> contacts;
+    private final AtomicReference<ContactSnapshot> snapshot = new AtomicReference<ContactSnapshot>();
+    private final CountDownLatch ready = new CountDownLatch(1);
 
     // --- CONSTRUCTOR ---
     public ContactLoader(ThreadGroup mainGroup, Configurator configurator)
@@ -181,7 +182,7 @@ public final class ContactLoader extends Thread {
         // Create and start LDAP listener
         int port = (int) configurator.getConfigProperty(Configurator.LDAP_PORT,
                 9080);
-        ldapListener = new LDAPListener(this, hosts, addresses, port);
+        ldapListener = new LDAPListener(this, configurator, hosts, addresses, port);
 
         // Start listener
         start();
@@ -189,6 +190,9 @@ public final class ContactLoader extends Thread {
 
     // --- CONTACT LOADER LOOP ---
     public final void run() {
+
+        // Serve the persisted contact list until the first download
+        loadContactFile();
         for (;;) {
             try {
 
@@ -217,6 +221,11 @@ public final class ContactLoader extends Thread {
             } catch (Exception loadError) {
                 try {
                     log.error("Unable to load contact list!", loadError);
+
+                    // Serve the empty list (instead of busy responses)
+                    if (snapshot.get() == null) {
+                        publish(ContactTable.EMPTY, null, false);
+                    }
                     sleep(pollingTimeout);
                 } catch (Exception ex) {
                     return;
@@ -234,13 +243,15 @@ public final class ContactLoader extends Thread {
         HashSet cardFiles = new HashSet();
         GmailEntry entry = null;
 
-        // Loop on accounts
+        // Loop on accounts (their contacts are stored one after the other)
         ArrayList allContacts = new ArrayList();
+        int[] bounds = new int[usernames.length + 1];
         for (int n = 0; n < usernames.length; n++) {
             try {
                 // Download CSV from Gmail
                 entry = pool.borrow(usernames[n], passwords[n]);
                 allContacts.addAll(entry.getContacts());
+                bounds[n + 1] = allContacts.size();
             } finally {
                 pool.recycle(entry);
             }
@@ -249,8 +260,34 @@ public final class ContactLoader extends Thread {
             }
         }
 
+        // Convert to the compact contact table (the contact objects are
+        // released when the load completes)
+        ContactTable table = new ContactTable(allContacts);
+
+        // Persist the contacts (served after restart while offline). Only the
+        // mapped file is kept; the sequential file is written only if the
+        // mapped one can not be (eg. the list is larger than a mapping)
+        File streamFile = new File(vcardDirectory, ContactStream.NAME);
+        try {
+            ContactFile.write(vcardDirectory, table, usernames, bounds);
+            streamFile.delete();
+        } catch (IOException writeError) {
+            log.warn("Unable to save contact file!", writeError);
+            try {
+                ContactStream.write(streamFile, table);
+
+                // The older mapped files would be loaded first
+                File[] mappedFiles = ContactFile.list(vcardDirectory);
+                for (int i = 0; i < mappedFiles.length; i++) {
+                    mappedFiles[i].delete();
+                }
+            } catch (IOException streamError) {
+                log.warn("Unable to save contact list file!", streamError);
+            }
+        }
+
         // Save contact in other formats (eg. HTML)
-        saveContacts(vcardDirectory, allContacts);
+        saveContacts(vcardDirectory, table);
 
         // Remove deleted contacts
         String[] currentFiles = vcardDirectory.list();
@@ -263,35 +300,64 @@ public final class ContactLoader extends Thread {
         }
 
         // Contact list loaded
-        synchronized (this) {
-            contacts = allContacts;
+        publish(table, bounds, true);
+        log.debug(table.size() + " contacts loaded successfully.");
+    }
+
+    /**
+     * Builds the search structures of the contact list, and publishes them
+     * with the next generation number (only the loader thread replaces the
+     * snapshot). The bounds are the start of each account's contacts and the
+     * size of the list (null if not known). If indexed is false, the indexes
+     * are built by the first search that needs them (the list is served
+     * sooner).
+     */
+    private final void publish(ContactTable table, int[] bounds, boolean indexed) {
+        ContactSnapshot previous = snapshot.get();
+        long generation = previous == null ? 1 : previous.generation + 1;
+        ContactSnapshot next = new ContactSnapshot(generation, table, usernames, bounds);
+        if (indexed) {
+            next.buildIndexes();
         }
-        log.debug(allContacts.size() + " contacts loaded successfully.");
+        snapshot.set(next);
+        ready.countDown();
     }
 
-    private static final void saveContacts(File vcardDirectory, List<GmailContact> contacts) throws Exception {
-        QuickWriter buffer = new QuickWriter();
-        GmailContact contact;
-        byte[] bytes;
-        File file;
-        int i;
+    private final void loadContactFile() {
 
-        // Persist a seralized version of the contacts as fall back for offline
-        FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
-        file = new File(vcardDirectory, "contacts.bin");
-        try {
-            fos = new FileOutputStream(file);
-            oos = new ObjectOutputStream(fos);
-            oos.writeObject(contacts);
-        } finally {
-            if (oos != null) {
-                oos.close();
+        // Map the newest valid contact file (without reading it onto the heap)
+        File[] mappedFiles = ContactFile.list(vcardDirectory);
+        for (int i = 0; i < mappedFiles.length; i++) {
+            try {
+                log.debug("Loading contacts from contact file...");
+                ContactFile file = ContactFile.open(mappedFiles[i]);
+                publish(file.contacts, Arrays.equals(file.accounts, usernames) ? file.bounds : null, false);
+                log.info(file.contacts.size() + " contacts mapped successfully.");
+                return;
+            } catch (IOException invalidFile) {
+                log.warn("Unable to map contact file (" + mappedFiles[i] + ")!", invalidFile);
             }
-            if (fos != null) {
-                fos.close();
+        }
+
+        // Read the contact list file
+        File file = new File(vcardDirectory, ContactStream.NAME);
+        if (file.isFile()) {
+            try {
+                log.debug("Loading contacts from contact list file...");
+                ContactTable table = new ContactTable(ContactStream.read(file));
+                publish(table, null, false);
+                log.info(table.size() + " contacts loaded successfully.");
+            } catch (IOException invalidFile) {
+                log.error("Unable to load contact list file (" + file + ")!", invalidFile);
             }
         }
+    }
+
+    private static final void saveContacts(File vcardDirectory, ContactTable contacts) throws Exception {
+        QuickWriter buffer = new QuickWriter();
+        byte[] bytes;
+        File file;
+        int i;
 
         // Save HTML
         buffer.flush();
@@ -327,7 +393,6 @@ public final class ContactLoader extends Thread {
         buffer.write("</tr>\r\n");
 
         for (i = 0; i < contacts.size(); i++) {
-            contact = contacts.get(i);
             if (i % 2 != 1) {
                 buffer.write("<tr>");
             } else {
@@ -335,59 +400,59 @@ public final class ContactLoader extends Thread {
             }
 
             buffer.write("<td>");
-            buffer.write(contact.name);
+            buffer.write(contacts.get(i, ContactTable.NAME));
             buffer.write("&nbsp;</td>");
 
             buffer.write("<td>");
-            buffer.write(contact.email.replace(",", ", "));
+            buffer.write(contacts.get(i, ContactTable.EMAIL).replace(",", ", "));
             buffer.write("&nbsp;</td>");
 
             buffer.write("<td>");
-            buffer.write(contact.notes);
+            buffer.write(contacts.get(i, ContactTable.NOTES));
             buffer.write("&nbsp;</td>");
 
             buffer.write("<td>");
-            buffer.write(contact.description);
+            buffer.write(contacts.get(i, ContactTable.DESCRIPTION));
             buffer.write("&nbsp;</td>");
 
             buffer.write("<td>");
-            buffer.write(contact.mail);
+            buffer.write(contacts.get(i, ContactTable.MAIL));
             buffer.write("&nbsp;</td>");
 
             buffer.write("<td>");
-            buffer.write(contact.im);
+            buffer.write(contacts.get(i, ContactTable.IM));
             buffer.write("&nbsp;</td>");
 
             buffer.write("<td>");
-            buffer.write(contact.phone);
+            buffer.write(contacts.get(i, ContactTable.PHONE));
             buffer.write("&nbsp;</td>");
 
             buffer.write("<td>");
-            buffer.write(contact.mobile);
+            buffer.write(contacts.get(i, ContactTable.MOBILE));
             buffer.write("&nbsp;</td>");
 
             buffer.write("<td>");
-            buffer.write(contact.pager);
+            buffer.write(contacts.get(i, ContactTable.PAGER));
             buffer.write("&nbsp;</td>");
 
             buffer.write("<td>");
-            buffer.write(contact.fax);
+            buffer.write(contacts.get(i, ContactTable.FAX));
             buffer.write("&nbsp;</td>");
 
             buffer.write("<td>");
-            buffer.write(contact.company);
+            buffer.write(contacts.get(i, ContactTable.COMPANY));
             buffer.write("&nbsp;</td>");
 
             buffer.write("<td>");
-            buffer.write(contact.title);
+            buffer.write(contacts.get(i, ContactTable.TITLE));
             buffer.write("&nbsp;</td>");
 
             buffer.write("<td>");
-            buffer.write(contact.other);
+            buffer.write(contacts.get(i, ContactTable.OTHER));
             buffer.write("&nbsp;</td>");
 
             buffer.write("<td>");
-            buffer.write(contact.address);
+            buffer.write(contacts.get(i, ContactTable.ADDRESS));
             buffer.write("&nbsp;</td>");
 
             buffer.write("</tr>\r\n");
@@ -405,63 +470,62 @@ public final class ContactLoader extends Thread {
         buffer.write("<address-book>\r\n");
 
         for (i = 0; i < contacts.size(); i++) {
-            contact = contacts.get(i);
             buffer.write("\t<contact>\r\n");
 
             buffer.write("\t\t<name>");
-            buffer.write(contact.name);
+            buffer.write(contacts.get(i, ContactTable.NAME));
             buffer.write("</name>\r\n");
 
             buffer.write("\t\t<email>");
-            buffer.write(contact.email.replace(",", ", "));
+            buffer.write(contacts.get(i, ContactTable.EMAIL).replace(",", ", "));
             buffer.write("</email>\r\n");
 
             buffer.write("\t\t<notes>");
-            buffer.write(contact.notes);
+            buffer.write(contacts.get(i, ContactTable.NOTES));
             buffer.write("</notes>\r\n");
 
             buffer.write("\t\t<description>");
-            buffer.write(contact.description);
+            buffer.write(contacts.get(i, ContactTable.DESCRIPTION));
             buffer.write("</description>\r\n");
 
             buffer.write("\t\t<mail>");
-            buffer.write(contact.mail);
+            buffer.write(contacts.get(i, ContactTable.MAIL));
             buffer.write("</mail>\r\n");
 
             buffer.write("\t\t<im>");
-            buffer.write(contact.im);
+            buffer.write(contacts.get(i, ContactTable.IM));
             buffer.write("</im>\r\n");
 
             buffer.write("\t\t<phone>");
-            buffer.write(contact.phone);
+            buffer.write(contacts.get(i, ContactTable.PHONE));
             buffer.write("</phone>\r\n");
 
             buffer.write("\t\t<mobile>");
-            buffer.write(contact.mobile);
+            buffer.write(contacts.get(i, ContactTable.MOBILE));
             buffer.write("</mobile>\r\n");
 
             buffer.write("\t\t<pager>");
-            buffer.write(contact.pager);
+            buffer.write(contacts.get(i, ContactTable.PAGER));
             buffer.write("</pager>\r\n");
 
             buffer.write("\t\t<fax>");
-            buffer.write(contact.fax);
+            buffer.write(contacts.get(i, ContactTable.FAX));
             buffer.write("</fax>\r\n");
 
             buffer.write("\t\t<company>");
-            buffer.write(contact.company);
+            buffer.write(contacts.get(i, ContactTable.COMPANY));
             buffer.write("</company>\r\n");
 
             buffer.write("\t\t<title>");
-            buffer.write(contact.title);
+            buffer.write(contacts.get(i, ContactTable.TITLE));
             buffer.write("</title>\r\n");
 
             buffer.write("\t\t<other>");
-            buffer.write(contact.other);
+            buffer.write(contacts.get(i, ContactTable.OTHER));
             buffer.write("</other>\r\n");
 
             buffer.write("\t\t<address>");
-            buffer.write(contact.address);
+            buffer.write(contacts.get(i, ContactTable.ADDRESS));
             buffer.write("</address>\r\n");
 
             buffer.write("\t</contact>\r\n");
@@ -791,35 +855,40 @@ public final class ContactLoader extends Thread {
     }
 
     // --- GMAIL CONTACT GETTER ---
-    public final synchronized ArrayList<GmailContact> getContacts() {
-        if (contacts == null) {
-            try {
-                log.warn("Network down - load contacts from serialization");
-                File file = new File(vcardDirectory, "contacts.bin");
-                if (!file.isFile()) {
-                    return new ArrayList<GmailContact>();
-                }
-                FileInputStream fis = null;
-                ObjectInputStream ois = null;
-                try {
-                    fis = new FileInputStream(file);
-                    ois = new ObjectInputStream(fis);
-                    contacts = (ArrayList<GmailContact>) ois.readObject();
-                    log.info(contacts.size() + " contacts loaded successfully.");
-                } catch (Exception ex) {
-                    log.error("error loading cached contacts lists:\n" + ex.toString());
-                } finally {
-                    if (ois != null) {
-                        ois.close();
-                    }
-                    if (fis != null) {
-                        fis.close();
-                    }
-                }
-            } catch (Exception ioError) {
-                log.warn(ioError);
-            }
-        }
-        return contacts;
+
+    /**
+     * Returns a copy of the contact list (or null if it is not loaded yet).
+     */
+    public final ArrayList<GmailContact> getContacts() {
+        ContactSnapshot current = snapshot.get();
+        return current == null ? null : current.contacts.toList();
+    }
+
+    /**
+     * Returns the current snapshot of the contact list (without locking), or
+     * null if it is not loaded yet (see {@link #awaitReady(long)}). A
+     * snapshot is never modified, a new list is published as a new
+     * snapshot.
+     */
+    final ContactSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Waits until the persisted contact list (or the first download) is
+     * loaded, at most for the given time in milliseconds. Returns true if the
+     * contact list is ready.
+     */
+    public final boolean awaitReady(long timeout) throws InterruptedException {
+        return ready.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the generation number of the current snapshot (it is increased
+     * every time the contact list is replaced), or 0 if no list is loaded.
+     */
+    public final long getGeneration() {
+        ContactSnapshot current = snapshot.get();
+        return current == null ? 0 : current.generation;
     }
 }
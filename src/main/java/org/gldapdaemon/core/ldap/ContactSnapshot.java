@@ -0,0 +1,284 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * One generation of the contact list with its search structures (encoded
+ * entries, folded columns and indexes). The searchable fields are folded
+ * once, into character arrays (see {@link FoldedColumn}), and the filters
+ * compare the character ranges of the values. The indexes are built once,
+ * when they are first needed; otherwise never modified after it is built.
+ */
+final class ContactSnapshot {
+
+    // --- COLUMNS (SEARCHABLE ATTRIBUTES) ---
+    static final int CN = 0;
+    static final int MAIL = 1;
+    static final int NOTES = 2;
+    static final int MOBILE = 3;
+    static final int PHONE = 4;
+    static final int MAIL2 = 5;
+    static final int ADDRESS = 6;
+    static final int PAGER = 7;
+    static final int FAX = 8;
+    static final int TITLE = 9;
+    static final int COMPANY = 10;
+    private static final int[] PHONES = {MOBILE, PHONE, PAGER, FAX};
+    private static final int[] INDEXED = {CN, MAIL, MAIL2, COMPANY};
+    // --- FIELDS OF THE COLUMNS ---
+    private static final int[] FIELDS = {ContactTable.NAME, ContactTable.EMAIL, ContactTable.NOTES,
+        ContactTable.MOBILE, ContactTable.PHONE, ContactTable.MAIL, ContactTable.ADDRESS, ContactTable.PAGER,
+        ContactTable.FAX, ContactTable.TITLE, ContactTable.COMPANY};
+    // --- FALLBACK COLUMNS (IF THE VALUE IS EMPTY) ---
+    private static final int[] FALLBACKS = {COMPANY, -1, -1, PHONE, -1, -1, -1, FAX, -1, -1, -1};
+    // --- VARIABLES ---
+    final long generation;
+    final ContactTable contacts;
+    final EncodedEntries entries;
+    final String[] accounts;
+    final int[] bounds;
+    private final FoldedColumn[] columns = new FoldedColumn[FIELDS.length];
+    private final FoldedColumn[] numbers = new FoldedColumn[FIELDS.length];
+    private volatile TrigramIndex names;
+    private volatile PrefixIndex words;
+    private volatile PrefixIndex phones;
+
+    // --- CONSTRUCTOR ---
+
+    /**
+     * Creates the snapshot of a contact list. The contacts of the accounts
+     * are stored one after the other; the bounds are the start of each
+     * account's contacts and the size of the list (null if not known).
+     */
+    ContactSnapshot(long generation, ContactTable contacts, String[] accounts, int[] bounds) {
+        this.generation = generation;
+        this.contacts = contacts == null ? ContactTable.EMPTY : contacts;
+        this.entries = new EncodedEntries(this.contacts);
+
+        // Account partitions
+        int size = this.contacts.size();
+        if (accounts != null && bounds != null && bounds.length == accounts.length + 1
+                && bounds[accounts.length] == size) {
+            this.accounts = accounts;
+            this.bounds = bounds;
+        } else {
+            this.accounts = null;
+            this.bounds = new int[] {0, size};
+        }
+
+        // Fold the searchable fields (and the digits of the phone numbers)
+        for (int column = 0; column < FIELDS.length; column++) {
+            columns[column] = FoldedColumn.fold(this.contacts, FIELDS[column]);
+            if (isPhone(column)) {
+                numbers[column] = FoldedColumn.digits(columns[column]);
+            }
+        }
+    }
+
+    final int size() {
+        return contacts.size();
+    }
+
+    // --- INDEXES ---
+
+    /**
+     * Builds the indexes (otherwise they are built by the first search that
+     * uses them).
+     */
+    final void buildIndexes() {
+        names();
+        words();
+        phones();
+    }
+
+    /**
+     * Returns the substring index of the names, companies and email
+     * addresses.
+     */
+    final TrigramIndex names() {
+        TrigramIndex index = names;
+        if (index == null) {
+            synchronized (this) {
+                index = names;
+                if (index == null) {
+                    index = new TrigramIndex(this, INDEXED);
+                    names = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the word prefix index of the names, companies and email
+     * addresses.
+     */
+    final PrefixIndex words() {
+        PrefixIndex index = words;
+        if (index == null) {
+            synchronized (this) {
+                index = words;
+                if (index == null) {
+                    index = new PrefixIndex(this, INDEXED, false);
+                    words = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of the reversed digits of the phone numbers (a suffix
+     * search is a prefix search of the reversed numbers).
+     */
+    final PrefixIndex phones() {
+        PrefixIndex index = phones;
+        if (index == null) {
+            synchronized (this) {
+                index = phones;
+                if (index == null) {
+                    index = new PrefixIndex(this, PHONES, true);
+                    phones = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    // --- COLUMN VALUES ---
+
+    /**
+     * Returns the folded column that holds the value of a contact (as sent
+     * in the search entries, eg. the company if the contact has no name).
+     */
+    final FoldedColumn value(int column, int index) {
+        return columns[resolve(column, index)];
+    }
+
+    /**
+     * Returns the column of digits that holds the phone number of a contact.
+     */
+    final FoldedColumn number(int column, int index) {
+        return numbers[resolve(column, index)];
+    }
+
+    private final int resolve(int column, int index) {
+        int fallback = FALLBACKS[column];
+        return fallback != -1 && columns[column].isEmpty(index) ? fallback : column;
+    }
+
+    /**
+     * Returns the partition of an account (a full email address or its user
+     * name part), or -1 if the account is unknown.
+     */
+    final int partition(String account) {
+        if (accounts == null) {
+            return -1;
+        }
+        for (int i = 0; i < accounts.length; i++) {
+            String name = accounts[i];
+            if (name.equalsIgnoreCase(account)) {
+                return i;
+            }
+            int at = name.indexOf('@');
+            if (at != -1 && at == account.length() && name.regionMatches(true, 0, account, 0, at)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // --- SEARCH KEY NORMALIZATION ---
+
+    /**
+     * Returns the search key form of a text: compatibility decomposition
+     * (NFKD) without diacritics, case folded. Lowercase ASCII text is
+     * returned as is, so most values share their key with the contact.
+     */
+    static final String fold(String text) {
+        boolean lower = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                return foldUnicode(text);
+            }
+            if (c >= 'A' && c <= 'Z') {
+                lower = false;
+            }
+        }
+        return lower ? text : text.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static final String foldUnicode(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFKD);
+        StringBuffer buffer = new StringBuffer(decomposed.length());
+        char c;
+        for (int i = 0; i < decomposed.length(); i++) {
+            c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                buffer.append(c);
+            }
+        }
+
+        // Full case folding (eg. "\u00df" to "ss")
+        return buffer.toString().toUpperCase(Locale.ENGLISH).toLowerCase(Locale.ENGLISH);
+    }
+
+    // --- PHONE NUMBER NORMALIZATION ---
+
+    /**
+     * Returns the digits of a phone number (eg. "15550102000" of
+     * "+1 (555) 010-2000").
+     */
+    static final String digits(String number) {
+        StringBuffer buffer = null;
+        char c;
+        for (int i = 0; i < number.length(); i++) {
+            c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (buffer != null) {
+                    buffer.append(c);
+                }
+            } else if (buffer == null) {
+                buffer = new StringBuffer(number.length());
+                buffer.append(number, 0, i);
+            }
+        }
+        return buffer == null ? number : buffer.toString();
+    }
+
+    static final String reverse(String digits) {
+        if (digits.length() < 2) {
+            return digits;
+        }
+        return new StringBuffer(digits).reverse().toString();
+    }
+
+    /**
+     * Returns true if the column contains phone numbers.
+     */
+    static final boolean isPhone(int column) {
+        return column == MOBILE || column == PHONE || column == PAGER || column == FAX;
+    }
+
+    /**
+     * Returns true if the substring and prefix indexes cover the given
+     * column.
+     */
+    static final boolean isIndexed(int column) {
+        return column == CN || column == MAIL || column == MAIL2 || column == COMPANY;
+    }
+}
@@ -0,0 +1,263 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+import org.gldapdaemon.core.GmailContact;
+
+/**
+ * Compact, versioned contact list file, written and read sequentially. Only
+ * written if the mapped contact file can not be (eg. the list is too large
+ * to map); read at startup if there is no valid mapped file. Layout:
+ *
+ * <pre>
+ * header:  magic, version, fields, contacts (int)
+ * records: bitmap of the non-empty fields (short), then the values of these
+ *          fields (UTF-8 length as variable length int, UTF-8 bytes)
+ * trailer: CRC-32 of the header and the records (int)
+ * </pre>
+ */
+final class ContactStream {
+
+    // --- CONSTANTS ---
+    static final String NAME = "contacts.bin";
+    private static final int MAGIC = 0x474c4442;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 65536;
+    // --- VARIABLES ---
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+    private int checked;
+
+    // --- CONSTRUCTOR ---
+    private ContactStream(FileChannel channel) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    // --- FILE WRITER ---
+
+    /**
+     * Writes the contact list. The file is replaced when the new one is
+     * complete.
+     */
+    static final void write(File file, ContactTable contacts) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        boolean written = false;
+        try {
+            raf.setLength(0);
+            ContactStream stream = new ContactStream(raf.getChannel());
+            ByteBuffer buffer = stream.buffer;
+            int size = contacts.size();
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(ContactTable.FIELDS);
+            buffer.putInt(size);
+            for (int i = 0; i < size; i++) {
+
+                // Bitmap of the non-empty fields
+                int bitmap = 0;
+                for (int field = 0; field < ContactTable.FIELDS; field++) {
+                    if (!contacts.isEmpty(i, field)) {
+                        bitmap |= 1 << field;
+                    }
+                }
+                stream.flush(2);
+                buffer.putShort((short) bitmap);
+
+                // Values
+                for (int field = 0; bitmap != 0; field++, bitmap >>>= 1) {
+                    if ((bitmap & 1) == 0) {
+                        continue;
+                    }
+                    String value = contacts.get(i, field);
+                    int length = ContactFile.utf8Length(value);
+                    stream.flush(5);
+                    while (length > 0x7f) {
+                        buffer.put((byte) (0x80 | length & 0x7f));
+                        length >>>= 7;
+                    }
+                    buffer.put((byte) length);
+                    for (int n = 0; n < value.length(); n++) {
+                        stream.flush(4);
+                        n = ContactFile.encode(value, n, buffer);
+                    }
+                }
+            }
+            stream.flush(BUFFER_SIZE);
+            buffer.putInt((int) stream.crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                stream.channel.write(buffer);
+            }
+            stream.channel.force(false);
+            written = true;
+        } finally {
+            raf.close();
+            if (!written) {
+                temp.delete();
+            }
+        }
+        replace(temp, file);
+    }
+
+    /**
+     * Replaces the file with the (complete) temporary file. On some
+     * platforms the rename fails if the file exists.
+     */
+    private static final void replace(File temp, File file) throws IOException {
+        if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) {
+            temp.delete();
+            throw new IOException("Unable to replace " + file + "!");
+        }
+    }
+
+    private final void flush(int space) throws IOException {
+        if (buffer.remaining() < space) {
+            crc.update(buffer.array(), 0, buffer.position());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    // --- FILE READER ---
+
+    /**
+     * Reads the contact list. A damaged or truncated file (or a file of an
+     * other version) is reported as an IOException.
+     */
+    static final ArrayList<GmailContact> read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ContactStream stream = new ContactStream(raf.getChannel());
+            return stream.read();
+        } catch (IndexOutOfBoundsException invalidValue) {
+            throw new IOException("Corrupt contact file!");
+        } finally {
+            raf.close();
+        }
+    }
+
+    private final ArrayList<GmailContact> read() throws IOException {
+        buffer.flip();
+        require(16);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                || buffer.getInt() != ContactTable.FIELDS) {
+            throw new IOException("Invalid contact file header!");
+        }
+        int size = buffer.getInt();
+        if (size < 0) {
+            throw new IOException("Invalid contact file header!");
+        }
+        ArrayList<GmailContact> contacts = new ArrayList<GmailContact>(Math.min(size, BUFFER_SIZE));
+        String[] values = new String[ContactTable.FIELDS];
+        for (int i = 0; i < size; i++) {
+            require(2);
+            int bitmap = buffer.getShort() & 0xffff;
+            if (bitmap >>> ContactTable.FIELDS != 0) {
+                throw new IOException("Corrupt contact file!");
+            }
+            for (int field = 0; field < ContactTable.FIELDS; field++, bitmap >>>= 1) {
+                if ((bitmap & 1) == 0) {
+                    values[field] = "";
+                    continue;
+                }
+                int length = 0;
+                int b;
+                int shift = 0;
+                do {
+                    require(1);
+                    b = buffer.get();
+                    length |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0 && shift < 32);
+                if (length <= 0 || length > channel.size()) {
+                    throw new IOException("Corrupt contact file!");
+                }
+                require(length);
+                int start = buffer.position();
+                values[field] = ContactTable.decode(buffer, start, start + length);
+                buffer.position(start + length);
+            }
+            contacts.add(contact(values));
+        }
+
+        // Verify the checksum (and the end of the file)
+        crc.update(buffer.array(), checked, buffer.position() - checked);
+        checked = buffer.position();
+        require(4);
+        if (buffer.getInt() != (int) crc.getValue()) {
+            throw new IOException("Contact file checksum mismatch!");
+        }
+        if (buffer.hasRemaining() || channel.position() != channel.size()) {
+            throw new IOException("Corrupt contact file!");
+        }
+        return contacts;
+    }
+
+    /**
+     * Reads until the given number of bytes are available. The consumed bytes
+     * are added to the checksum before they are discarded.
+     */
+    private final void require(int length) throws IOException {
+        if (buffer.remaining() >= length) {
+            return;
+        }
+        crc.update(buffer.array(), checked, buffer.position() - checked);
+        if (length > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(length, 2 * buffer.capacity()));
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        checked = 0;
+        while (buffer.position() < length) {
+            if (channel.read(buffer) == -1) {
+                throw new IOException("Truncated contact file!");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static final GmailContact contact(String[] values) {
+        GmailContact contact = new GmailContact();
+        contact.name = values[ContactTable.NAME];
+        contact.email = values[ContactTable.EMAIL];
+        contact.notes = values[ContactTable.NOTES];
+        contact.description = values[ContactTable.DESCRIPTION];
+        contact.mail = values[ContactTable.MAIL];
+        contact.im = values[ContactTable.IM];
+        contact.phone = values[ContactTable.PHONE];
+        contact.mobile = values[ContactTable.MOBILE];
+        contact.pager = values[ContactTable.PAGER];
+        contact.fax = values[ContactTable.FAX];
+        contact.company = values[ContactTable.COMPANY];
+        contact.title = values[ContactTable.TITLE];
+        contact.other = values[ContactTable.OTHER];
+        contact.address = values[ContactTable.ADDRESS];
+        return contact;
+    }
+}
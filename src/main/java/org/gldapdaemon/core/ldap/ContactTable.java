@@ -0,0 +1,296 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.gldapdaemon.core.GmailContact;
+
+/**
+ * Immutable, column oriented contact list (without per-contact objects).
+ * Every field is stored either as one character array with the start
+ * offsets of the values, or, if it has few distinct values (eg. company or
+ * title), as a dictionary of the values and a 16-bit code per contact,
+ * whichever is smaller. A table can also be a read-only view of a memory
+ * mapped contact file (see {@link ContactFile}), then the values are decoded
+ * from the UTF-8 blobs of the file when they are read. Values are read by
+ * contact index and field.
+ */
+final class ContactTable {
+
+    // --- FIELDS ---
+    static final int NAME = 0;
+    static final int EMAIL = 1;
+    static final int NOTES = 2;
+    static final int DESCRIPTION = 3;
+    static final int MAIL = 4;
+    static final int IM = 5;
+    static final int PHONE = 6;
+    static final int MOBILE = 7;
+    static final int PAGER = 8;
+    static final int FAX = 9;
+    static final int COMPANY = 10;
+    static final int TITLE = 11;
+    static final int OTHER = 12;
+    static final int ADDRESS = 13;
+    static final int FIELDS = 14;
+    // --- CONSTANTS ---
+    private static final int MAX_DICTIONARY_SIZE = 0xffff;
+    private static final int STRING_OVERHEAD = 40;
+    static final ContactTable EMPTY = new ContactTable(new ArrayList<GmailContact>());
+    // --- VARIABLES ---
+    private final int size;
+    private final char[][] text = new char[FIELDS][];
+    private final int[][] offsets = new int[FIELDS][];
+    private final String[][] dictionaries = new String[FIELDS][];
+    private final char[][] codes = new char[FIELDS][];
+    private final ByteBuffer mapped;
+    private final int table;
+
+    // --- CONSTRUCTORS ---
+    ContactTable(List<GmailContact> contacts) {
+        size = contacts.size();
+        mapped = null;
+        table = 0;
+        String[] values = new String[size];
+        for (int field = 0; field < FIELDS; field++) {
+            for (int i = 0; i < size; i++) {
+                String value = value(contacts.get(i), field);
+                values[i] = value == null ? "" : value;
+            }
+            encode(field, values);
+        }
+    }
+
+    /**
+     * Creates a view of a mapped contact file. The start offsets of the
+     * values (and the end of the last one) are stored field by field at the
+     * given position, as positions of UTF-8 blobs in the buffer.
+     */
+    ContactTable(ByteBuffer mapped, int size, int table) {
+        this.size = size;
+        this.mapped = mapped;
+        this.table = table;
+    }
+
+    private final void encode(int field, String[] values) {
+
+        // Compare the size of the two encodings
+        HashMap<String, Integer> distinct = new HashMap<String, Integer>();
+        long textSize = 4L * (size + 1);
+        long dictionarySize = 2L * size;
+        for (int i = 0; i < size; i++) {
+            String value = values[i];
+            textSize += 2 * value.length();
+            if (distinct.size() <= MAX_DICTIONARY_SIZE && !distinct.containsKey(value)) {
+                distinct.put(value, new Integer(distinct.size()));
+                dictionarySize += STRING_OVERHEAD + 2 * value.length();
+            }
+        }
+        if (distinct.size() <= MAX_DICTIONARY_SIZE && dictionarySize < textSize) {
+
+            // Dictionary encoding
+            String[] dictionary = new String[distinct.size()];
+            char[] fieldCodes = new char[size];
+            for (int i = 0; i < size; i++) {
+                int code = distinct.get(values[i]).intValue();
+                if (dictionary[code] == null) {
+                    dictionary[code] = values[i];
+                }
+                fieldCodes[i] = (char) code;
+            }
+            dictionaries[field] = dictionary;
+            codes[field] = fieldCodes;
+            return;
+        }
+
+        // Character array with offsets
+        char[] chars = new char[(int) ((textSize - 4L * (size + 1)) / 2)];
+        int[] starts = new int[size + 1];
+        int position = 0;
+        for (int i = 0; i < size; i++) {
+            starts[i] = position;
+            values[i].getChars(0, values[i].length(), chars, position);
+            position += values[i].length();
+        }
+        starts[size] = position;
+        text[field] = chars;
+        offsets[field] = starts;
+    }
+
+    // --- VALUE ACCESSORS ---
+    final int size() {
+        return size;
+    }
+
+    /**
+     * Returns a field of a contact (never null).
+     */
+    final String get(int index, int field) {
+        if (mapped != null) {
+            int position = table + 4 * (field * (size + 1) + index);
+            return decode(mapped, mapped.getInt(position), mapped.getInt(position + 4));
+        }
+        String[] dictionary = dictionaries[field];
+        if (dictionary != null) {
+            return dictionary[codes[field][index]];
+        }
+        int start = offsets[field][index];
+        int end = offsets[field][index + 1];
+        return start == end ? "" : new String(text[field], start, end - start);
+    }
+
+    /**
+     * Returns the distinct values of a dictionary encoded field, or null if
+     * the field is not dictionary encoded.
+     */
+    final String[] dictionary(int field) {
+        return dictionaries[field];
+    }
+
+    /**
+     * Returns the dictionary index of every contact of a dictionary encoded
+     * field, or null if the field is not dictionary encoded.
+     */
+    final char[] codes(int field) {
+        return codes[field];
+    }
+
+    /**
+     * Returns the characters of a field stored as one character array, or
+     * null if the field is dictionary encoded or mapped.
+     */
+    final char[] text(int field) {
+        return text[field];
+    }
+
+    /**
+     * Returns the start offsets of the values (and the end of the last one)
+     * of a field stored as one character array.
+     */
+    final int[] offsets(int field) {
+        return offsets[field];
+    }
+
+    /**
+     * Returns true if a field of a contact is empty (without creating the
+     * value).
+     */
+    final boolean isEmpty(int index, int field) {
+        if (mapped != null) {
+            int position = table + 4 * (field * (size + 1) + index);
+            return mapped.getInt(position) == mapped.getInt(position + 4);
+        }
+        String[] dictionary = dictionaries[field];
+        if (dictionary != null) {
+            return dictionary[codes[field][index]].length() == 0;
+        }
+        return offsets[field][index + 1] == offsets[field][index];
+    }
+
+    /**
+     * Decodes a value written by {@link ContactFile#encode}. The buffer is
+     * read by absolute positions (a mapped buffer is shared by the threads).
+     */
+    static final String decode(ByteBuffer bytes, int start, int end) {
+        if (start == end) {
+            return "";
+        }
+        char[] chars = new char[end - start];
+        int count = 0;
+        int i = start;
+        int b, c;
+        while (i < end) {
+            b = bytes.get(i++);
+            if (b >= 0) {
+                chars[count++] = (char) b;
+                continue;
+            }
+            if ((b & 0xe0) == 0xc0) {
+                c = (b & 0x1f) << 6 | bytes.get(i++) & 0x3f;
+            } else if ((b & 0xf0) == 0xe0) {
+                c = (b & 0x0f) << 12 | (bytes.get(i++) & 0x3f) << 6 | bytes.get(i++) & 0x3f;
+            } else {
+                c = (b & 0x07) << 18 | (bytes.get(i++) & 0x3f) << 12 | (bytes.get(i++) & 0x3f) << 6
+                        | bytes.get(i++) & 0x3f;
+                chars[count++] = (char) (0xd7c0 + (c >> 10));
+                c = 0xdc00 | c & 0x3ff;
+            }
+            chars[count++] = (char) c;
+        }
+        return new String(chars, 0, count);
+    }
+
+    // --- GMAIL CONTACT CONVERTERS ---
+    private static final String value(GmailContact contact, int field) {
+        switch (field) {
+            case NAME:
+                return contact.name;
+            case EMAIL:
+                return contact.email;
+            case NOTES:
+                return contact.notes;
+            case DESCRIPTION:
+                return contact.description;
+            case MAIL:
+                return contact.mail;
+            case IM:
+                return contact.im;
+            case PHONE:
+                return contact.phone;
+            case MOBILE:
+                return contact.mobile;
+            case PAGER:
+                return contact.pager;
+            case FAX:
+                return contact.fax;
+            case COMPANY:
+                return contact.company;
+            case TITLE:
+                return contact.title;
+            case OTHER:
+                return contact.other;
+            default:
+                return contact.address;
+        }
+    }
+
+    /**
+     * Returns a copy of the contact list (as GmailContact objects).
+     */
+    final ArrayList<GmailContact> toList() {
+        ArrayList<GmailContact> list = new ArrayList<GmailContact>(size);
+        for (int i = 0; i < size; i++) {
+            GmailContact contact = new GmailContact();
+            contact.name = get(i, NAME);
+            contact.email = get(i, EMAIL);
+            contact.notes = get(i, NOTES);
+            contact.description = get(i, DESCRIPTION);
+            contact.mail = get(i, MAIL);
+            contact.im = get(i, IM);
+            contact.phone = get(i, PHONE);
+            contact.mobile = get(i, MOBILE);
+            contact.pager = get(i, PAGER);
+            contact.fax = get(i, FAX);
+            contact.company = get(i, COMPANY);
+            contact.title = get(i, TITLE);
+            contact.other = get(i, OTHER);
+            contact.address = get(i, ADDRESS);
+            list.add(contact);
+        }
+        return list;
+    }
+}
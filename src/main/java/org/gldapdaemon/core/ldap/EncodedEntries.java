@@ -0,0 +1,345 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.gldapdaemon.core.StringUtils;
+
+/**
+ * SearchResultEntry operations of a contact list, encoded once per contact
+ * list snapshot. Every entry is stored in two variants: UTF-8 and the
+ * "native" variant (UTF-8 bytes re-decoded in the platform's charset) used by
+ * clients that send UTF-8 filters. The position of every attribute is kept
+ * with the entry, so a response with a requested attribute list copies only
+ * the selected attributes and adds the message envelope.
+ */
+final class EncodedEntries {
+
+    // --- CONSTANTS ---
+    private static final String PLATFORM_ENCODING = Charset.defaultCharset().name();
+    private static final boolean PLATFORM_UTF8 = Charset.forName("UTF-8").equals(Charset.defaultCharset());
+    private static final int SEARCH_RESULT_ENTRY = 0x64;
+    // --- ATTRIBUTE TYPES ---
+    private static final String[] TYPES = {"cn", "mail", "comment", "description", "telephonenumber",
+        "homePhone", "mozillaSecondEmail", "mailAlternateAddress", "postalAddress", "homePostalAddress",
+        "homeStreet", "pager", "facsimileTelephoneNumber", "title", "company", "o"};
+    private static final byte[][] TYPE_BYTES = new byte[TYPES.length][];
+    static final int ALL_ATTRIBUTES = (1 << TYPES.length) - 1;
+    static final int NO_ATTRIBUTES = 0;
+    // --- LOGGER ---
+    private static final Log log = LogFactory.getLog(EncodedEntries.class);
+    // --- VARIABLES ---
+    private final Entry[] entries;
+    private final Entry[] utf8Entries;
+
+    static {
+        for (int i = 0; i < TYPES.length; i++) {
+            try {
+                TYPE_BYTES[i] = StringUtils.encodeString(TYPES[i], StringUtils.US_ASCII);
+            } catch (Exception unsupported) {
+                TYPE_BYTES[i] = TYPES[i].getBytes();
+            }
+        }
+    }
+
+    // --- CONSTRUCTOR ---
+    EncodedEntries(ContactTable contacts) {
+        int size = contacts.size();
+        entries = new Entry[size];
+        utf8Entries = PLATFORM_UTF8 ? entries : new Entry[size];
+        for (int i = 0; i < size; i++) {
+            try {
+                entries[i] = encodeEntry(contacts, false, i);
+                if (!PLATFORM_UTF8) {
+                    utf8Entries[i] = encodeEntry(contacts, true, i);
+                }
+            } catch (Exception encodingError) {
+                log.debug(encodingError);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(size + " search entries encoded.");
+        }
+    }
+
+    /**
+     * Returns true if the contact at the given index can be sent.
+     */
+    final boolean isEncoded(int index, boolean utf8) {
+        return (utf8 ? utf8Entries[index] : entries[index]) != null;
+    }
+
+    // --- ATTRIBUTE SELECTION ---
+
+    /**
+     * Resolves the attribute list of a search request into a set of
+     * attribute types (bit mask). An empty list or "*" selects all user
+     * attributes, "1.1" and "+" (there are no operational attributes) alone
+     * select none.
+     */
+    static final int select(String[] attributes) {
+        if (attributes == null || attributes.length == 0) {
+            return ALL_ATTRIBUTES;
+        }
+        int mask = NO_ATTRIBUTES;
+        for (int i = 0; i < attributes.length; i++) {
+            String name = attributes[i];
+            if (name == null) {
+                continue;
+            }
+            int options = name.indexOf(';');
+            if (options != -1) {
+                name = name.substring(0, options);
+            }
+            name = name.trim();
+            if (name.equals("*")) {
+                return ALL_ATTRIBUTES;
+            }
+            if (name.equalsIgnoreCase("commonName")) {
+                name = "cn";
+            } else if (name.equalsIgnoreCase("organizationName")) {
+                name = "o";
+            }
+            for (int t = 0; t < TYPES.length; t++) {
+                if (TYPES[t].equalsIgnoreCase(name)) {
+                    mask |= 1 << t;
+                    break;
+                }
+            }
+        }
+        return mask;
+    }
+
+    // --- SEARCH ENTRY ENVELOPE ---
+
+    /**
+     * Returns the size of the SearchResultEntry message of the contact at the
+     * given index, with the selected attributes.
+     */
+    final int messageSize(int index, boolean utf8, int mask, int messageId) {
+        Entry encoded = utf8 ? utf8Entries[index] : entries[index];
+        byte[] entry = encoded.bytes;
+        int[] layout = encoded.layout;
+        int opSize = entry.length;
+        if ((mask & layout[2]) != layout[2]) {
+            opSize = BerCodec.sizeOf(opLength(entry, layout, mask));
+        }
+        return BerCodec.sizeOf(BerCodec.sizeOf(BerCodec.integerLength(messageId)) + opSize);
+    }
+
+    final void writeMessage(ByteBuffer out, int index, boolean utf8, int mask, int messageId) {
+        Entry encoded = utf8 ? utf8Entries[index] : entries[index];
+        byte[] entry = encoded.bytes;
+        int[] layout = encoded.layout;
+        int idLength = BerCodec.sizeOf(BerCodec.integerLength(messageId));
+        if ((mask & layout[2]) == layout[2]) {
+
+            // Every attribute of the contact is selected
+            BerCodec.writeHeader(out, BerCodec.SEQUENCE_TAG, idLength + entry.length);
+            BerCodec.writeInteger(out, BerCodec.INTEGER_TAG, messageId);
+            out.put(entry);
+            return;
+        }
+        int attributesLength = attributesLength(entry, layout, mask);
+        int opLength = layout[1] - layout[0] + BerCodec.sizeOf(attributesLength);
+        BerCodec.writeHeader(out, BerCodec.SEQUENCE_TAG, idLength + BerCodec.sizeOf(opLength));
+        BerCodec.writeInteger(out, BerCodec.INTEGER_TAG, messageId);
+        BerCodec.writeHeader(out, SEARCH_RESULT_ENTRY, opLength);
+        out.put(entry, layout[0], layout[1] - layout[0]);
+        BerCodec.writeHeader(out, BerCodec.SEQUENCE_TAG, attributesLength);
+        int k = 3;
+        for (int t = 0; t < TYPES.length; t++) {
+            if ((layout[2] & (1 << t)) != 0) {
+                if ((mask & (1 << t)) != 0) {
+                    int end = k + 1 < layout.length ? layout[k + 1] : entry.length;
+                    out.put(entry, layout[k], end - layout[k]);
+                }
+                k++;
+            }
+        }
+    }
+
+    private static final int opLength(byte[] entry, int[] layout, int mask) {
+        return layout[1] - layout[0] + BerCodec.sizeOf(attributesLength(entry, layout, mask));
+    }
+
+    private static final int attributesLength(byte[] entry, int[] layout, int mask) {
+        int length = 0;
+        int k = 3;
+        for (int t = 0; t < TYPES.length; t++) {
+            if ((layout[2] & (1 << t)) != 0) {
+                if ((mask & (1 << t)) != 0) {
+                    int end = k + 1 < layout.length ? layout[k + 1] : entry.length;
+                    length += end - layout[k];
+                }
+                k++;
+            }
+        }
+        return length;
+    }
+
+    // --- CONTACT TO SEARCH ENTRY CONVERTER ---
+
+    /**
+     * Encodes the entry of a contact. The layout of the entry is the start
+     * and end of the DN, the set of the attributes present and the start of
+     * each attribute.
+     */
+    private static final Entry encodeEntry(ContactTable contacts, boolean utf8, int index) throws Exception {
+        String company = contacts.get(index, ContactTable.COMPANY);
+        String value = !contacts.isEmpty(index, ContactTable.NAME) ? contacts.get(index, ContactTable.NAME)
+                : company;
+        String[] values = new String[TYPES.length];
+        values[0] = value;
+
+        // first email
+        values[1] = contacts.get(index, ContactTable.EMAIL);
+
+        // notes
+        values[2] = contacts.get(index, ContactTable.NOTES);
+        values[3] = values[2];
+
+        // mobile phone
+        String phone = contacts.get(index, ContactTable.PHONE);
+        String mobile = contacts.get(index, ContactTable.MOBILE);
+        if (mobile.length() == 0) {
+            mobile = phone;
+        }
+        values[4] = mobile;
+
+        // homePhone
+        values[5] = phone;
+
+        // second email
+        values[6] = contacts.get(index, ContactTable.MAIL);
+        values[7] = values[6];
+
+        // postal address
+        values[8] = contacts.get(index, ContactTable.ADDRESS);
+        values[9] = values[8];
+        values[10] = values[8];
+
+        // pager (or fax)
+        String fax = contacts.get(index, ContactTable.FAX);
+        String pager = contacts.get(index, ContactTable.PAGER);
+        values[11] = pager.length() != 0 ? pager : fax;
+
+        // fax
+        values[12] = fax;
+
+        // title
+        values[13] = contacts.get(index, ContactTable.TITLE);
+
+        // company
+        values[14] = company;
+        values[15] = company;
+
+        // Encode attribute values
+        byte[][] bytes = new byte[TYPES.length][];
+        int mask = 0;
+        int count = 0;
+        int attributesLength = 0;
+        for (int t = 0; t < TYPES.length; t++) {
+            if (values[t] != null && values[t].length() != 0) {
+                bytes[t] = toBytes(values[t], utf8);
+                attributesLength += BerCodec.sizeOf(attributeLength(TYPE_BYTES[t], bytes[t]));
+                mask |= 1 << t;
+                count++;
+            }
+        }
+
+        // SearchResultEntry ::= [APPLICATION 4] SEQUENCE {
+        // objectName LDAPDN, attributes PartialAttributeList }
+        byte[] dn = toBytes("CN=" + escapeDN(value), utf8);
+        int opLength = BerCodec.sizeOf(dn.length) + BerCodec.sizeOf(attributesLength);
+        ByteBuffer out = ByteBuffer.allocate(BerCodec.sizeOf(opLength));
+        int[] layout = new int[3 + count];
+        BerCodec.writeHeader(out, SEARCH_RESULT_ENTRY, opLength);
+        layout[0] = out.position();
+        BerCodec.writeOctetString(out, dn);
+        layout[1] = out.position();
+        layout[2] = mask;
+        BerCodec.writeHeader(out, BerCodec.SEQUENCE_TAG, attributesLength);
+        int k = 3;
+        for (int t = 0; t < TYPES.length; t++) {
+            if (bytes[t] != null) {
+                layout[k++] = out.position();
+                BerCodec.writeHeader(out, BerCodec.SEQUENCE_TAG, attributeLength(TYPE_BYTES[t], bytes[t]));
+                BerCodec.writeOctetString(out, TYPE_BYTES[t]);
+                BerCodec.writeHeader(out, BerCodec.SET_TAG, BerCodec.sizeOf(bytes[t].length));
+                BerCodec.writeOctetString(out, bytes[t]);
+            }
+        }
+        return new Entry(out.array(), layout);
+    }
+
+    private static final int attributeLength(byte[] type, byte[] value) {
+        return BerCodec.sizeOf(type.length) + BerCodec.sizeOf(BerCodec.sizeOf(value.length));
+    }
+
+    private static final byte[] toBytes(String text, boolean utf8) throws Exception {
+        if (utf8) {
+            text = new String(text.getBytes("UTF8"), PLATFORM_ENCODING);
+        }
+        return StringUtils.encodeString(text, StringUtils.UTF_8);
+    }
+
+    private static final class Entry {
+
+        private final byte[] bytes;
+        private final int[] layout;
+
+        private Entry(byte[] bytes, int[] layout) {
+            this.bytes = bytes;
+            this.layout = layout;
+        }
+    }
+
+    // --- RFC 4514 ATTRIBUTE VALUE ESCAPING ---
+    private static final String escapeDN(String value) {
+        StringBuffer buffer = new StringBuffer(value.length() + 8);
+        char c;
+        for (int i = 0; i < value.length(); i++) {
+            c = value.charAt(i);
+            switch (c) {
+                case ',':
+                case '+':
+                case '"':
+                case '\\':
+                case '<':
+                case '>':
+                case ';':
+                case '=':
+                    buffer.append('\\');
+                    break;
+                case '#':
+                    if (i == 0) {
+                        buffer.append('\\');
+                    }
+                    break;
+                case ' ':
+                    if (i == 0 || i == value.length() - 1) {
+                        buffer.append('\\');
+                    }
+                    break;
+                default:
+            }
+            buffer.append(c);
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,157 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.util.Arrays;
+
+/**
+ * Folded (search key) form of a field of a contact snapshot, built once per
+ * snapshot. The values are stored in one character array with their start
+ * offsets; a dictionary encoded field keeps only its distinct values folded,
+ * with the codes of the contact table. A field that is already folded (eg.
+ * lowercase ASCII email addresses) shares the arrays of the contact table.
+ * Searches compare the character ranges of the values in place.
+ */
+final class FoldedColumn {
+
+    // --- VARIABLES ---
+    final char[] chars;
+    private final int[] offsets;
+    private final char[] codes;
+
+    // --- CONSTRUCTOR ---
+    private FoldedColumn(char[] chars, int[] offsets, char[] codes) {
+        this.chars = chars;
+        this.offsets = offsets;
+        this.codes = codes;
+    }
+
+    // --- COLUMN BUILDERS ---
+
+    /**
+     * Folds a field of a contact table.
+     */
+    static final FoldedColumn fold(ContactTable contacts, int field) {
+        String[] dictionary = contacts.dictionary(field);
+        if (dictionary != null) {
+            Builder builder = new Builder(dictionary.length);
+            for (int i = 0; i < dictionary.length; i++) {
+                builder.add(ContactSnapshot.fold(dictionary[i]));
+            }
+            return builder.build(contacts.codes(field));
+        }
+        char[] text = contacts.text(field);
+        if (text != null && isFolded(text)) {
+            return new FoldedColumn(text, contacts.offsets(field), null);
+        }
+        int size = contacts.size();
+        Builder builder = new Builder(size);
+        for (int i = 0; i < size; i++) {
+            builder.add(contacts.isEmpty(i, field) ? "" : ContactSnapshot.fold(contacts.get(i, field)));
+        }
+        return builder.build(null);
+    }
+
+    /**
+     * Returns the digits of a folded phone number column (eg. "15550102000"
+     * of "+1 (555) 010-2000").
+     */
+    static final FoldedColumn digits(FoldedColumn column) {
+        int count = column.offsets.length - 1;
+        int[] starts = new int[count + 1];
+        char[] digits = new char[column.chars.length];
+        int position = 0;
+        char c;
+        for (int i = 0; i < count; i++) {
+            starts[i] = position;
+            for (int n = column.offsets[i]; n < column.offsets[i + 1]; n++) {
+                c = column.chars[n];
+                if (c >= '0' && c <= '9') {
+                    digits[position++] = c;
+                }
+            }
+        }
+        starts[count] = position;
+        return new FoldedColumn(Arrays.copyOf(digits, position), starts, column.codes);
+    }
+
+    /**
+     * Returns true if the text is in search key form already (lowercase
+     * ASCII).
+     */
+    private static final boolean isFolded(char[] text) {
+        char c;
+        for (int i = 0; i < text.length; i++) {
+            c = text[i];
+            if (c >= 0x80 || (c >= 'A' && c <= 'Z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // --- VALUE ACCESSORS ---
+
+    /**
+     * Returns the start of a contact's value in the character array.
+     */
+    final int start(int index) {
+        return offsets[codes == null ? index : codes[index]];
+    }
+
+    /**
+     * Returns the end of a contact's value in the character array.
+     */
+    final int end(int index) {
+        return offsets[(codes == null ? index : codes[index]) + 1];
+    }
+
+    final boolean isEmpty(int index) {
+        int n = codes == null ? index : codes[index];
+        return offsets[n] == offsets[n + 1];
+    }
+
+    /**
+     * Returns a contact's value (creates a new string).
+     */
+    final String get(int index) {
+        int start = start(index);
+        return new String(chars, start, end(index) - start);
+    }
+
+    // --- COLUMN BUILDER ---
+    private static final class Builder {
+
+        private char[] chars = new char[256];
+        private final int[] offsets;
+        private int count;
+
+        private Builder(int size) {
+            offsets = new int[size + 1];
+        }
+
+        private final void add(String value) {
+            int position = offsets[count];
+            int length = value.length();
+            if (position + length > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, position + length));
+            }
+            value.getChars(0, length, chars, position);
+            offsets[++count] = position + length;
+        }
+
+        private final FoldedColumn build(char[] codes) {
+            return new FoldedColumn(Arrays.copyOf(chars, offsets[count]), offsets, codes);
+        }
+    }
+}
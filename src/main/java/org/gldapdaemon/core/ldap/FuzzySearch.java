@@ -0,0 +1,138 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+/**
+ * Ranked approximate search (used when a search finds nothing, eg. the name
+ * is mistyped). Every word of the key is matched against the word prefix
+ * index with a bounded edit distance; the contacts matching all words are
+ * ranked by their similarity and the best ones are kept in a fixed-size
+ * heap.
+ */
+final class FuzzySearch {
+
+    // --- CONSTANTS ---
+    private static final int[] EMPTY = new int[0];
+
+    // --- CONSTRUCTOR ---
+    private FuzzySearch() {
+    }
+
+    // --- QUERY ---
+
+    /**
+     * Returns the indexes of the (at most maxResults) contacts most similar
+     * to the (lowercase) key in the given range, best first. The threshold is
+     * the minimum similarity of the words in percent.
+     */
+    static final int[] search(ContactSnapshot snapshot, int from, int to, String key, int maxResults,
+            int threshold) {
+        int size = to - from;
+        int[] totals = null;
+        int words = 0;
+        int start = -1;
+        for (int i = 0; i <= key.length(); i++) {
+            if (i < key.length() && Character.isLetterOrDigit(key.charAt(i))) {
+                if (start == -1) {
+                    start = i;
+                }
+                continue;
+            }
+            if (start == -1) {
+                continue;
+            }
+            String word = key.substring(start, i);
+            start = -1;
+
+            // Similarity of the word in every contact of the range (0 = no match)
+            int length = word.length();
+            int[] scores = new int[size];
+            snapshot.words().similar(word, length * (100 - threshold) / 100, scores, from, to);
+            if (totals == null) {
+                totals = new int[size];
+            }
+            for (int n = 0; n < size; n++) {
+                if (totals[n] != -1) {
+                    totals[n] = scores[n] == 0 ? -1 : totals[n] + (scores[n] - 1) * 100 / length;
+                }
+            }
+            words++;
+        }
+        if (words == 0 || maxResults < 1) {
+            return EMPTY;
+        }
+
+        // Keep the best contacts (the worst one is on the top of the heap)
+        int[] heap = new int[Math.min(maxResults, size)];
+        int count = 0;
+        for (int n = 0; n < size; n++) {
+            if (totals[n] < 1) {
+                continue;
+            }
+            if (count < heap.length) {
+                heap[count] = n;
+                siftUp(heap, count++, totals);
+            } else if (count != 0 && worse(heap[0], n, totals)) {
+                heap[0] = n;
+                siftDown(heap, count, totals);
+            }
+        }
+
+        // Remove the worst ones first
+        int[] hits = new int[count];
+        for (int i = count - 1; i >= 0; i--) {
+            hits[i] = heap[0] + from;
+            heap[0] = heap[--count];
+            siftDown(heap, count, totals);
+        }
+        return hits;
+    }
+
+    // --- BINARY HEAP ---
+    private static final boolean worse(int a, int b, int[] totals) {
+        return totals[a] < totals[b] || (totals[a] == totals[b] && a > b);
+    }
+
+    private static final void siftUp(int[] heap, int position, int[] totals) {
+        int n = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (!worse(n, heap[parent], totals)) {
+                break;
+            }
+            heap[position] = heap[parent];
+            position = parent;
+        }
+        heap[position] = n;
+    }
+
+    private static final void siftDown(int[] heap, int count, int[] totals) {
+        if (count == 0) {
+            return;
+        }
+        int n = heap[0];
+        int position = 0;
+        int child;
+        while ((child = 2 * position + 1) < count) {
+            if (child + 1 < count && worse(heap[child + 1], heap[child], totals)) {
+                child++;
+            }
+            if (!worse(heap[child], n, totals)) {
+                break;
+            }
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = n;
+    }
+}
@@ -0,0 +1,102 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timer wheel of the idle connections of one reactor. Activity only
+ * updates the connection's timestamp; the connection is moved to a later
+ * slot when its slot comes around, so reads and writes cost nothing here.
+ */
+final class IdleTimer {
+
+    // --- CONSTANTS ---
+    private static final int SLOTS = 32;
+    private static final long MIN_TICK = 100L;
+    // --- VARIABLES ---
+    private final long timeout;
+    private final long tick;
+    private final ArrayList<ArrayList<LDAPConnection>> wheel = new ArrayList<ArrayList<LDAPConnection>>(SLOTS);
+    private long current;
+
+    // --- CONSTRUCTOR ---
+    IdleTimer(long timeout) {
+        this.timeout = timeout;
+        this.tick = Math.max(timeout / (SLOTS / 2), MIN_TICK);
+        for (int i = 0; i < SLOTS; i++) {
+            wheel.add(new ArrayList<LDAPConnection>());
+        }
+        current = System.currentTimeMillis() / tick;
+    }
+
+    /**
+     * Returns the select timeout of the reactor.
+     */
+    final long tick() {
+        return tick;
+    }
+
+    final void schedule(LDAPConnection connection) {
+        schedule(connection, connection.lastActivity + timeout);
+    }
+
+    private final void schedule(LDAPConnection connection, long deadline) {
+        long slot = (deadline + tick - 1) / tick;
+        if (slot <= current) {
+            slot = current + 1;
+        }
+        wheel.get((int) (slot % SLOTS)).add(connection);
+    }
+
+    /**
+     * Advances the wheel and returns the connections that have been idle for
+     * longer than the timeout, or null.
+     */
+    final ArrayList<LDAPConnection> expire(long now) {
+        long target = now / tick;
+        if (target - current > SLOTS) {
+            current = target - SLOTS;
+        }
+        ArrayList<LDAPConnection> expired = null;
+        while (current < target) {
+            current++;
+            int index = (int) (current % SLOTS);
+            ArrayList<LDAPConnection> slot = wheel.get(index);
+            if (slot.isEmpty()) {
+                continue;
+            }
+            wheel.set(index, new ArrayList<LDAPConnection>());
+            for (int i = 0; i < slot.size(); i++) {
+                LDAPConnection connection = slot.get(i);
+                if (!connection.channel.isOpen()) {
+                    continue;
+                }
+                long deadline = connection.lastActivity + timeout;
+                if (deadline > now) {
+                    schedule(connection, deadline);
+                } else if (connection.isIdle()) {
+                    if (expired == null) {
+                        expired = new ArrayList<LDAPConnection>();
+                    }
+                    expired.add(connection);
+                } else {
+
+                    // Waiting for a worker or the client, check again later
+                    schedule(connection, now + timeout);
+                }
+            }
+        }
+        return expired;
+    }
+}
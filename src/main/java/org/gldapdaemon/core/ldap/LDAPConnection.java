@@ -0,0 +1,286 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * State of one LDAP client connection (attached to its selection key).
+ */
+final class LDAPConnection {
+
+    // --- CONSTANTS ---
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_GATHER = 16;
+    private static final int MAX_PIPELINED = 32;
+    private static final int MAX_CURSORS = 8;
+    // --- VARIABLES ---
+    final SocketChannel channel;
+    private final int maxRequestSize;
+    private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private int start;
+    private int frameLength = -1;
+    private final LinkedHashMap<Integer, PendingRequest> pending = new LinkedHashMap<Integer, PendingRequest>();
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private int queuedBytes;
+    private LDAPResponse response;
+    private final LinkedHashMap<Long, PagedResults.Cursor> cursors = new LinkedHashMap<Long, PagedResults.Cursor>();
+    private long nextCursor;
+    // --- STATISTICS ---
+    long lastActivity = System.currentTimeMillis();
+    long bytesIn;
+    long bytesOut;
+    int requests;
+
+    // --- CONSTRUCTOR ---
+    LDAPConnection(SocketChannel channel, int maxRequestSize) {
+        this.channel = channel;
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    // --- READ REQUEST BYTES ---
+    final int read() throws IOException {
+        if (!inbound.hasRemaining()) {
+            if (start > 0) {
+                compact();
+            } else {
+                grow(inbound.capacity() * 2);
+            }
+        }
+        int len = channel.read(inbound);
+        if (len > 0) {
+            bytesIn += len;
+            lastActivity = System.currentTimeMillis();
+        }
+        return len;
+    }
+
+    /**
+     * Returns the next complete LDAP message, or null when more bytes are
+     * needed. The returned buffer is only valid until {@link #consume()}.
+     */
+    final ByteBuffer nextRequest() throws IOException {
+        int available = inbound.position() - start;
+        frameLength = BerCodec.frameLength(inbound.array(), start, available);
+        if (frameLength == -1) {
+            return null;
+        }
+        if (frameLength > maxRequestSize) {
+            throw new IOException("LDAP request is too large (" + frameLength + " bytes)!");
+        }
+        if (frameLength > available) {
+
+            // Make room for the whole message at once
+            if (frameLength > inbound.capacity() - start) {
+                if (frameLength > inbound.capacity()) {
+                    grow(frameLength);
+                } else {
+                    compact();
+                }
+            }
+            frameLength = -1;
+            return null;
+        }
+        return ByteBuffer.wrap(inbound.array(), start, frameLength);
+    }
+
+    /**
+     * Removes the message returned by {@link #nextRequest()} from the buffer.
+     */
+    final void consume() {
+        if (frameLength > 0) {
+            start += frameLength;
+            if (start == inbound.position()) {
+                start = 0;
+                if (inbound.capacity() > INITIAL_BUFFER_SIZE) {
+
+                    // Release the buffer of a large request
+                    inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+                } else {
+                    inbound.clear();
+                }
+            }
+            frameLength = -1;
+        }
+    }
+
+    private final void compact() {
+        byte[] bytes = inbound.array();
+        int remaining = inbound.position() - start;
+        System.arraycopy(bytes, start, bytes, 0, remaining);
+        inbound.position(remaining);
+        start = 0;
+    }
+
+    private final void grow(int capacity) {
+        ByteBuffer swap = ByteBuffer.allocate(capacity);
+        swap.put(inbound.array(), start, inbound.position() - start);
+        inbound = swap;
+        start = 0;
+    }
+
+    // --- REQUESTS IN FLIGHT ---
+    final boolean canAccept() {
+        return pending.size() < MAX_PIPELINED;
+    }
+
+    final PendingRequest add(int messageId) throws IOException {
+        Integer key = new Integer(messageId);
+        if (pending.containsKey(key)) {
+            throw new IOException("Duplicate LDAP message ID (" + messageId + ")!");
+        }
+        PendingRequest request = new PendingRequest(messageId);
+        pending.put(key, request);
+        requests++;
+        return request;
+    }
+
+    final void abandon(int messageId) {
+        PendingRequest request = pending.get(new Integer(messageId));
+        if (request != null) {
+            request.abandoned = true;
+        }
+    }
+
+    /**
+     * Returns true if no request of the connection is processed by a worker.
+     */
+    final boolean isIdle() {
+        Iterator<PendingRequest> requests = pending.values().iterator();
+        while (requests.hasNext()) {
+            if (!requests.next().completed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the response to send next. Responses are sent in request order,
+     * so a completed request waits for the ones received before it.
+     */
+    final LDAPResponse nextResponse() {
+        if (response == null) {
+            Iterator<PendingRequest> requests = pending.values().iterator();
+            while (requests.hasNext()) {
+                PendingRequest request = requests.next();
+                if (!request.completed) {
+                    break;
+                }
+                requests.remove();
+                if (!request.abandoned && request.response != null) {
+                    response = request.response;
+                    break;
+                }
+            }
+        }
+        return response;
+    }
+
+    final void responseSent() {
+        response = null;
+    }
+
+    final boolean hasOutput() {
+        return queuedBytes > 0 || nextResponse() != null;
+    }
+
+    // --- PAGED SEARCH CURSORS (USED BY THE WORKERS) ---
+
+    /**
+     * Stores the remaining results of a paged search and returns the cookie
+     * of the next page. The oldest cursor is dropped when there are too many.
+     */
+    final synchronized byte[] openCursor(PagedResults.Cursor cursor) {
+        if (cursors.size() >= MAX_CURSORS) {
+            Iterator<Long> oldest = cursors.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        long id = ++nextCursor;
+        cursors.put(new Long(id), cursor);
+        return ByteBuffer.allocate(8).putLong(id).array();
+    }
+
+    /**
+     * Removes and returns the cursor of the given cookie, or null if the
+     * cookie is unknown.
+     */
+    final synchronized PagedResults.Cursor takeCursor(byte[] cookie) {
+        if (cookie.length != 8) {
+            return null;
+        }
+        return cursors.remove(new Long(ByteBuffer.wrap(cookie).getLong()));
+    }
+
+    // --- OUTBOUND QUEUE ---
+    final void enqueue(ByteBuffer buffer) {
+        outbound.addLast(buffer);
+        queuedBytes += buffer.remaining();
+    }
+
+    final int queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Writes the queued buffers with gathering writes. Returns false if the
+     * socket could not take everything.
+     */
+    final boolean flush(BufferPool pool) throws IOException {
+        while (!outbound.isEmpty()) {
+            int count = 0;
+            Iterator<ByteBuffer> buffers = outbound.iterator();
+            while (count < MAX_GATHER && buffers.hasNext()) {
+                gather[count++] = buffers.next();
+            }
+            long written = channel.write(gather, 0, count);
+            if (written > 0) {
+                queuedBytes -= (int) written;
+                bytesOut += written;
+                lastActivity = System.currentTimeMillis();
+            }
+            for (int i = 0; i < count; i++) {
+                gather[i] = null;
+            }
+
+            // Recycle the written buffers
+            int released = 0;
+            ByteBuffer buffer;
+            while ((buffer = outbound.peekFirst()) != null && !buffer.hasRemaining()) {
+                pool.release(outbound.pollFirst());
+                released++;
+            }
+            if (released < count) {
+
+                // Socket buffer is full
+                return false;
+            }
+        }
+        return true;
+    }
+
+    final void release(BufferPool pool) {
+        ByteBuffer buffer;
+        while ((buffer = outbound.pollFirst()) != null) {
+            pool.release(buffer);
+        }
+        queuedBytes = 0;
+    }
+}
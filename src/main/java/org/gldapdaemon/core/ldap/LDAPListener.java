@@ -12,48 +12,44 @@
 //
 package org.gldapdaemon.core.ldap;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.ByteBuffer;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.naming.directory.BasicAttribute;
-import javax.naming.directory.BasicAttributes;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.directory.shared.asn1.codec.DecoderException;
 import org.apache.directory.shared.ldap.codec.LdapConstants;
-import org.apache.directory.shared.ldap.codec.LdapDecoder;
 import org.apache.directory.shared.ldap.codec.LdapMessage;
-import org.apache.directory.shared.ldap.codec.LdapMessageContainer;
 import org.apache.directory.shared.ldap.codec.LdapResponse;
 import org.apache.directory.shared.ldap.codec.LdapResult;
-import org.apache.directory.shared.ldap.codec.bind.BindResponse;
 import org.apache.directory.shared.ldap.codec.search.Filter;
 import org.apache.directory.shared.ldap.codec.search.SearchRequest;
-import org.apache.directory.shared.ldap.codec.search.SearchResultDone;
-import org.apache.directory.shared.ldap.codec.search.SearchResultEntry;
-import org.apache.directory.shared.ldap.codec.search.SubstringFilter;
 import org.apache.directory.shared.ldap.name.LdapDN;
+import org.gldapdaemon.core.Configurator;
 import org.gldapdaemon.core.FilterMask;
-import org.gldapdaemon.core.GmailContact;
-import org.gldapdaemon.core.StringUtils;
 
 /**
- * LDAP server thread.
+ * LDAP server thread. Accepts the incoming connections and hands them over
+ * to the I/O reactors in round-robin order.
  * 
  * Created: Jan 03, 2007 12:50:56 PM
  * 
@@ -62,20 +58,31 @@ import org.gldapdaemon.core.StringUtils;
 final class LDAPListener extends Thread {
 
     // --- CONSTANTS ---
-    private static final String PLATFORM_ENCODING = Charset.defaultCharset().name();
+    private static final long READY_TIMEOUT = 1000L;
     // --- LOGGER ---
     private static final Log log = LogFactory.getLog(LDAPListener.class);
-    // --- READ BUFFER ---
-    private static final ByteBuffer requestBuffer = ByteBuffer.allocateDirect(1024);
     // --- VARIABLES ---
     private final ContactLoader loader;
     private final ServerSocketChannel serverChannel;
     private final Selector selector;
     private final FilterMask[] hosts;
     private final FilterMask[] addresses;
+    private final LDAPReactor[] reactors;
+    private final ThreadPoolExecutor workers;
+    final BufferPool bufferPool = new BufferPool();
+    final AtomicInteger connections = new AtomicInteger();
+    private final int maxConnections;
+    final int maxRequestSize;
+    final long idleTimeout;
+    private int nextReactor;
+    private final ResultCache resultCache;
+    private final int fuzzyResults;
+    private final int fuzzyThreshold;
+    private final int chunkSize;
 
     // --- CONSTRUCTOR ---
-    LDAPListener(ContactLoader loader, FilterMask[] hosts, FilterMask[] addresses, int port) throws Exception {
+    LDAPListener(ContactLoader loader, Configurator configurator, FilterMask[] hosts, FilterMask[] addresses, int port) throws Exception {
+        super("LDAP listener");
 
         // Starting server
         log.info("LDAP server starting on port " + port + "...");
@@ -103,35 +110,84 @@ final class LDAPListener extends Thread {
         // Register the ServerSocketChannel with the Selector
         serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
+        // Create search worker pool
+        int cores = Runtime.getRuntime().availableProcessors();
+        int workerThreads = (int) configurator.getConfigProperty(Configurator.LDAP_WORKER_THREADS, cores);
+        if (workerThreads < 1) {
+            log.warn("The minimum number of LDAP worker threads is '1'!");
+            workerThreads = 1;
+        }
+        int workerQueue = (int) configurator.getConfigProperty(Configurator.LDAP_WORKER_QUEUE, 256L);
+        if (workerQueue < 1) {
+            log.warn("The minimum LDAP worker queue size is '1'!");
+            workerQueue = 1;
+        }
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(workerQueue), new WorkerFactory());
+
+        // Connection limits
+        maxConnections = (int) configurator.getConfigProperty(Configurator.LDAP_MAX_CONNECTIONS, 1024L);
+        idleTimeout = configurator.getConfigProperty(Configurator.LDAP_IDLE_TIMEOUT, 300000L);
+        long maxPduSize = configurator.getConfigProperty(Configurator.LDAP_MAX_PDU_SIZE, 1048576L);
+        if (maxPduSize < 1024L) {
+            log.warn("The minimum LDAP request size limit is '1 kbyte'!");
+            maxPduSize = 1024L;
+        }
+        maxRequestSize = (int) Math.min(maxPduSize, Integer.MAX_VALUE);
+
+        // Search result cache
+        resultCache = new ResultCache((int) configurator.getConfigProperty(Configurator.LDAP_SEARCH_CACHE_SIZE,
+                256L));
+
+        // Contacts compared by one worker before a search is split
+        long chunk = configurator.getConfigProperty(Configurator.LDAP_SEARCH_CHUNK_SIZE, 8192L);
+        if (chunk < 1024L) {
+            log.warn("The minimum LDAP search chunk size is '1024'!");
+            chunk = 1024L;
+        }
+        chunkSize = (int) Math.min(chunk, Integer.MAX_VALUE);
+
+        // Ranked fuzzy search (when nothing matches)
+        fuzzyResults = (int) configurator.getConfigProperty(Configurator.LDAP_FUZZY_RESULTS, 0L);
+        long threshold = configurator.getConfigProperty(Configurator.LDAP_FUZZY_THRESHOLD, 70L);
+        if (threshold < 1 || threshold > 100) {
+            log.warn("The LDAP fuzzy search threshold must be between '1' and '100'!");
+            threshold = Math.max(1L, Math.min(100L, threshold));
+        }
+        fuzzyThreshold = (int) threshold;
+
+        // Start I/O reactors
+        int ioThreads = (int) configurator.getConfigProperty(Configurator.LDAP_IO_THREADS, cores);
+        if (ioThreads < 1) {
+            log.warn("The minimum number of LDAP I/O threads is '1'!");
+            ioThreads = 1;
+        }
+        reactors = new LDAPReactor[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            reactors[i] = new LDAPReactor(this, i + 1);
+        }
+
         // Start thread
         start();
     }
 
-    // --- REQUEST LISTENER LOOP ---
+    // --- CONNECTION ACCEPTOR LOOP ---
     public final void run() {
-        log.info("LDAP server started successfully.");
+        log.info("LDAP server started successfully (" + reactors.length
+                + " I/O threads, " + workers.getMaximumPoolSize() + " workers).");
 
         // Create variables
-        SelectionKey key, newKey;
         SocketChannel channel;
-        Socket socket = null;
         Iterator keys;
         int n;
 
         // Server loop
         for (;;) {
+            channel = null;
             try {
-                // Select sockets
+                // Select server socket
                 try {
-                    socket = null;
                     n = selector.select();
-                } catch (NullPointerException closedError) {
-                    // Ignore Selector bug - client socket closed
-                    if (log.isDebugEnabled()) {
-                        log.debug("Socket closed.", closedError);
-                    }
-                    sleep(5000);
-                    continue;
                 } catch (ClosedSelectorException interrupt) {
                     break;
                 } catch (Exception selectError) {
@@ -139,85 +195,81 @@ final class LDAPListener extends Thread {
                     log.warn("Unable to select sockets!", selectError);
                     break;
                 }
+                if (n == 0) {
+                    continue;
+                }
+                keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    keys.next();
+                    keys.remove();
+                }
 
-                if (n != 0) {
-                    // Get an iterator over the set of selected keys
-                    keys = selector.selectedKeys().iterator();
-                    if (keys == null) {
-                        sleep(5000);
-                        continue;
+                // Accept all pending connections
+                for (;;) {
+                    channel = serverChannel.accept();
+                    if (channel == null) {
+                        break;
                     }
+                    channel.configureBlocking(false);
+                    processAccept(channel);
 
-                    // Look at each key in the selected set
-                    while (keys.hasNext()) {
-                        key = (SelectionKey) keys.next();
-                        keys.remove();
-
-                        // Nothing to do
-                        if (key == null) {
-                            sleep(5000);
-                            continue;
-                        }
-
-                        // Check key status
-                        if (key.isValid()) {
-                            // Accept new incoming connection
-                            if (key.isAcceptable()) {
-                                channel = serverChannel.accept();
-                                if (channel != null) {
-                                    // Register new socket connection
-                                    socket = channel.socket();
-                                    channel.configureBlocking(false);
-                                    newKey = channel.register(selector, SelectionKey.OP_READ);
-                                    processAccept(newKey);
-                                }
-                            } else {
-                                if (key.isReadable()) {
-                                    // Read from socket connection
-                                    socket = ((SocketChannel) key.channel()).socket();
-                                    processRead(key);
-                                } else {
-                                    // Write to socket connection
-                                    if (key.isWritable()) {
-                                        socket = ((SocketChannel) key.channel()).socket();
-                                        processWrite(key);
-                                    }
-                                }
-                            }
-                        }
-                    }
+                    // Pass connection to the next reactor
+                    connections.incrementAndGet();
+                    reactors[nextReactor].register(channel);
+                    nextReactor = (nextReactor + 1) % reactors.length;
                 }
-            } catch (InterruptedException interrupt) {
-                closeSocket(socket);
-                break;
             } catch (IOException socketClosed) {
-                closeSocket(socket);
-                continue;
+                closeSocket(channel);
+                if (!serverChannel.isOpen()) {
+                    break;
+                }
             } catch (Exception processingException) {
-                closeSocket(socket);
+                closeSocket(channel);
                 log.warn(processingException.getMessage(), processingException);
             }
         }
         log.info("LDAP server stopped.");
     }
 
-    private static final void closeSocket(Socket socket) {
-        if (socket != null) {
+    static final void closeSocket(SocketChannel channel) {
+        if (channel != null) {
             try {
-                if (!socket.isClosed()) {
-                    socket.close();
+                if (channel.isOpen()) {
+                    channel.close();
                 }
             } catch (Exception ignored) {
             }
         }
     }
 
+    // --- REQUEST EXECUTOR ---
+    final void execute(Runnable task) throws RejectedExecutionException {
+        workers.execute(task);
+    }
+
+    private static final class WorkerFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        public final Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "LDAP worker #" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     // --- TCP/IP ACCESS CONTROL ---
-    private final void processAccept(SelectionKey key) throws Exception {
+    private final void processAccept(SocketChannel channel) throws Exception {
+
+        // Check connection limit
+        if (maxConnections > 0 && connections.get() >= maxConnections) {
+            throw new Exception("Connection refused, too many LDAP connections ("
+                    + maxConnections + ")!");
+        }
 
         // Check TCP/IP access
         if (hosts != null || addresses != null) {
-            Socket socket = ((SocketChannel) key.channel()).socket();
+            Socket socket = channel.socket();
             InetAddress inetAddress = socket.getInetAddress();
             if (hosts != null) {
                 String host = inetAddress.getHostName();
@@ -269,68 +321,10 @@ final class LDAPListener extends Thread {
     }
 
     // --- LDAP REQUEST PROCESSOR ---
-    private final void processRead(SelectionKey key) throws Exception {
-
-        // Read packet from socket channel
-        sleep(100);
-        byte[] bytes = null;
-        Object att = key.attachment();
-        if (att != null && att instanceof byte[]) {
-            bytes = (byte[]) att;
-        }
-        SocketChannel channel = (SocketChannel) key.channel();
-        requestBuffer.clear();
-        int len = channel.read(requestBuffer);
-        if (len == -1) {
-            throw new IOException();
-        }
-        if (len != 0) {
-            requestBuffer.flip();
-            byte[] packet = new byte[len];
-            requestBuffer.get(packet, 0, len);
-            if (bytes == null || bytes.length == 0) {
-                bytes = packet;
-                key.attach(bytes);
-            } else {
-                byte[] swap = new byte[bytes.length + packet.length];
-                System.arraycopy(bytes, 0, swap, 0, bytes.length);
-                System.arraycopy(packet, 0, swap, bytes.length, packet.length);
-                bytes = swap;
-                key.attach(bytes);
-            }
-
-            // Try to process packet
-            LdapMessageContainer container = new LdapMessageContainer();
-            try {
-                ByteBuffer buffer = ByteBuffer.wrap(bytes);
-                LdapDecoder decoder = new LdapDecoder();
-                decoder.decode(buffer, container);
-            } catch (DecoderException emptyStringException) {
-                String msg = emptyStringException.getMessage();
-                if (msg != null && (msg.indexOf("empty") != -1 || msg.indexOf("transition") != -1)) {
-                    // All contacts requested
-                    int id = container.getMessageId();
-                    SearchRequest search = new SearchRequest();
-                    search.setMessageId(id);
-                    LdapMessage ldap = new LdapMessage();
-                    ldap.setMessageId(id);
-                    ldap.setProtocolOP(search);
-                    container.setLdapMessage(ldap);
-                } else {
-                    throw emptyStringException;
-                }
-            }
-
-            // Process LDAP request
-            ByteBuffer response = processRequest(container.getLdapMessage(), !container.isGrammarEndAllowed());
-            key.attach(response);
-            key.interestOps(SelectionKey.OP_WRITE);
-        }
-    }
-    private boolean nativeCharsetLocked = false;
+    private volatile boolean nativeCharsetLocked = false;
 
-    private final ByteBuffer processRequest(LdapMessage request, boolean utf8)
-            throws Exception {
+    final LDAPResponse processRequest(LdapMessage request, boolean utf8, LDAPConnection connection,
+            PagedResults paging) throws Exception {
         if (log.isDebugEnabled()) {
             try {
                 String command = request.getMessageTypeName();
@@ -347,24 +341,13 @@ final class LDAPListener extends Thread {
             case LdapConstants.BIND_REQUEST:
 
                 // Bind response
-                BindResponse bind = new BindResponse();
-                bind.setMessageId(request.getMessageId());
-                LdapResult result = new LdapResult();
-                result.setResultCode(0);
-                bind.setLdapResult(result);
-                list.addLast(bind);
-                break;
+                return new ResultResponse(request.getMessageId(), ResultResponse.BIND_RESPONSE,
+                        ResultResponse.SUCCESS, null);
 
             case LdapConstants.UNBIND_REQUEST:
 
-                // Unbind response
-                LdapResponse unbind = new LdapResponse();
-                unbind.setMessageId(request.getMessageId());
-                result = new LdapResult();
-                result.setResultCode(0);
-                unbind.setLdapResult(result);
-                list.addLast(unbind);
-                break;
+                // Unbind request has no response
+                return null;
 
             case LdapConstants.SEARCH_REQUEST:
 
@@ -373,240 +356,232 @@ final class LDAPListener extends Thread {
                     utf8 = false;
                 }
 
-                // Get search string
+                // Compile search filter
                 SearchRequest search = request.getSearchRequest();
-                Filter filter = search.getTerminalFilter();
-                String key = null;
-                if (filter == null) {
-                    filter = search.getFilter();
-                    if (filter == null) {
-                        filter = search.getCurrentFilter();
+                Filter root = search.getFilter();
+                if (root == null) {
+                    root = search.getCurrentFilter();
+                    if (root == null) {
+                        root = search.getTerminalFilter();
                     }
                 }
-                if (filter != null) {
-                    if (filter instanceof SubstringFilter) {
-                        SubstringFilter substringFilter = (SubstringFilter) filter;
-                        ArrayList substrings = substringFilter.getAnySubstrings();
-                        if (substrings != null && substrings.size() != 0) {
-                            key = (String) substrings.get(0);
-                        }
-                    }
-                    if (key == null) {
-                        key = filter.toString();
-                        if (key != null) {
-                            if (key.charAt(0) == '*') {
-                                key = key.substring(1);
-                            }
-                            if (key.charAt(key.length() - 1) == '*') {
-                                key = key.substring(0, key.length() - 1);
-                            }
-                            if (key.indexOf('=') != -1) {
-                                key = key.substring(key.indexOf('=') + 1);
-                            }
-                        }
-                    }
-                    if (key != null) {
-                        if (key.length() == 0) {
-                            key = null;
-                        } else {
-
-                            // Decode UTF8 chars
-                            try {
-                                byte[] bytes = key.getBytes(PLATFORM_ENCODING);
-                                key = StringUtils.decodeToString(bytes, StringUtils.UTF_8);
-                                if (utf8) {
-                                    bytes = key.getBytes(PLATFORM_ENCODING);
-                                    key = StringUtils.decodeToString(bytes, StringUtils.UTF_8);
-                                }
-                            } catch (Exception ignored) {
-                            }
-
-                            if (log.isDebugEnabled()) {
-                                log.debug("LDAP search filter (" + key + ") received.");
-                            }
-                            key = key.toLowerCase();
-
-                            // All contacts requested
-                            if (key.equals("@")) {
-                                key = null;
-                            }
-                        }
-                    }
+                if (log.isDebugEnabled() && root != null) {
+                    log.debug("LDAP search filter (" + root + ") received.");
                 }
+                SearchFilter filter = SearchFilter.compile(root, utf8);
 
                 // Handle native charset lock
-                if (key != null && !utf8) {
+                if (filter != SearchFilter.ALL && !utf8) {
                     nativeCharsetLocked = true;
                 }
 
-                // Find entry
-                ArrayList<GmailContact> contacts = loader.getContacts();
-                if (contacts != null) {
-                    GmailContact contact;
-                    for (int n = 0; n < contacts.size(); n++) {
-                        contact = contacts.get(n);
-                        String value = null;
-                        if (contact.name.toLowerCase().indexOf(key) >= 0 || contact.company.toLowerCase().indexOf(key) >= 0) {
-                            value = contact.name.length() > 0 ? contact.name : contact.company;
-                        } else if (key != null) {
-                            continue;
-                        }
-
-                        // Add search entry
-                        SearchResultEntry entry = new SearchResultEntry();
-                        entry.setMessageId(request.getMessageId());
-                        LdapDN name;
-                        try {
-                            name = new LdapDN("CN=" + encode(value, utf8));
-                        } catch (Exception badDN) {
-                            log.debug(badDN);
-                            continue;
-                        }
-                        entry.setObjectName(name);
-
-                        BasicAttributes partialAttributeList = new BasicAttributes(true);
-                        partialAttributeList.put(new BasicAttribute("cn", encode(value, utf8)));
-                        if (contact.email.length() != 0) {
-                            // first email
-                            partialAttributeList.put(new BasicAttribute("mail", encode(contact.email, utf8)));
-                        }
-                        if (contact.notes.length() != 0) {
-                            // notes
-                            partialAttributeList.put(new BasicAttribute("comment", encode(contact.notes, utf8)));
-                            partialAttributeList.put(new BasicAttribute("description", encode(contact.notes, utf8)));
-                        }
-                        String mobile = contact.mobile;
-                        if (mobile.length() == 0) {
-                            mobile = contact.phone;
-                        }
-                        if (mobile.length() != 0) {
-                            // mobile phone
-                            partialAttributeList.put(new BasicAttribute("telephonenumber", encode(mobile, utf8)));
-                        }
-                        if (contact.phone.length() != 0) {
-
-                            // homePhone
-                            partialAttributeList.put(new BasicAttribute("homePhone", encode(contact.phone, utf8)));
-                        }
-                        if (contact.mail.length() != 0) {
-
-                            // second email
-                            partialAttributeList.put(new BasicAttribute("mozillaSecondEmail", encode(contact.mail, utf8)));
-                            partialAttributeList.put(new BasicAttribute("mailAlternateAddress", encode(contact.mail, utf8)));
-                        }
-                        if (contact.address.length() != 0) {
-
-                            // postal address
-                            partialAttributeList.put(new BasicAttribute("postalAddress", encode(contact.address, utf8)));
-                            partialAttributeList.put(new BasicAttribute("homePostalAddress", encode(contact.address, utf8)));
-                            partialAttributeList.put(new BasicAttribute("homeStreet", encode(contact.address, utf8)));
-                        }
-                        if (contact.pager.length() != 0) {
-
-                            // pager
-                            partialAttributeList.put(new BasicAttribute("pager", encode(contact.pager, utf8)));
-                        }
-                        if (contact.fax.length() != 0) {
-
-                            // fax
-                            partialAttributeList.put(new BasicAttribute("facsimileTelephoneNumber", encode(contact.fax, utf8)));
-                            if (contact.pager.length() == 0) {
-                                partialAttributeList.put(new BasicAttribute("pager", encode(contact.fax, utf8)));
-                            }
-                        }
-                        if (contact.title.length() != 0) {
-
-                            // title
-                            partialAttributeList.put(new BasicAttribute("title", encode(contact.title, utf8)));
-                        }
-                        if (contact.company.length() != 0) {
-
-                            // company
-                            partialAttributeList.put(new BasicAttribute("company", encode(contact.company, utf8)));
-                            partialAttributeList.put(new BasicAttribute("o", encode(contact.company, utf8)));
-                        }
-                        entry.setPartialAttributeList(partialAttributeList);
-                        list.addLast(entry);
+                // Requested attributes
+                int attributes = EncodedEntries.select(getAttributeNames(search));
+
+                // Time limit of the request (in seconds)
+                long deadline = 0;
+                if (search.getTimeLimit() > 0) {
+                    deadline = System.currentTimeMillis() + search.getTimeLimit() * 1000L;
+                }
+
+                // Continue a paged search
+                int messageId = request.getMessageId();
+                if (paging != null && paging.cookie.length != 0) {
+                    PagedResults.Cursor cursor = connection.takeCursor(paging.cookie);
+                    if (cursor == null || cursor.snapshot.generation != loader.getGeneration()) {
+                        log.debug("Paged search cursor expired.");
+                        return new ResultResponse(messageId, ResultResponse.SEARCH_RESULT_DONE,
+                                ResultResponse.UNWILLING_TO_PERFORM, "Paged search cursor expired!");
                     }
+                    return processPage(messageId, cursor, paging.size, connection, utf8, attributes, deadline);
+                }
+
+                // Wait briefly for the contact list at startup
+                if (!loader.awaitReady(READY_TIMEOUT)) {
+                    log.debug("Contact list is not loaded yet.");
+                    return new ResultResponse(messageId, ResultResponse.SEARCH_RESULT_DONE,
+                            ResultResponse.BUSY, "Contact list is loading!");
                 }
 
-                // Search done
+                // Partition of the account named by the search base (the
+                // root searches and unknown accounts cover every partition)
+                ContactSnapshot snapshot = loader.getSnapshot();
+                int[] bounds = snapshot.bounds;
+                int partition = -1;
+                String account = getAccount(search);
+                if (account != null && snapshot.accounts != null) {
+                    partition = snapshot.partition(account);
+                    if (partition != -1) {
+                        bounds = new int[] {bounds[partition], bounds[partition + 1]};
+                    } else if (log.isDebugEnabled()) {
+                        log.debug("Unknown account (" + account + "), searching every account.");
+                    }
+                }
+
+                // Find entries (or reuse the result of the same search)
+                long sizeLimit = search.getSizeLimit();
+                String cacheKey = partition + " " + filter + " " + sizeLimit;
+                ResultCache.Result found = resultCache.get(snapshot.generation, cacheKey);
+                if (found == null) {
+                    found = ParallelSearch.search(workers, workers.getMaximumPoolSize(), chunkSize, snapshot,
+                            filter, bounds, sizeLimit, deadline);
+                    if (found.hits.length == 0 && found.resultCode == ResultResponse.SUCCESS
+                            && fuzzyResults > 0) {
+                        found = fuzzySearch(snapshot, bounds[0], bounds[bounds.length - 1], filter,
+                                sizeLimit);
+                    }
+                    if (found.resultCode != ResultResponse.TIME_LIMIT_EXCEEDED) {
+                        resultCache.put(snapshot.generation, cacheKey, found);
+                    }
+                }
+                int[] hits = found.hits;
                 if (log.isDebugEnabled()) {
-                    log.debug("Found " + list.size() + " contacts.");
+                    log.debug("Found " + hits.length + " contacts.");
+                }
+
+                // First page of a paged search
+                if (paging != null) {
+                    PagedResults.Cursor cursor = new PagedResults.Cursor(snapshot, hits, 0, found.resultCode);
+                    return processPage(messageId, cursor, paging.size, connection, utf8, attributes, deadline);
                 }
-                SearchResultDone done = new SearchResultDone();
-                done.setMessageId(request.getMessageId());
-                result = new LdapResult();
-                result.setResultCode(0);
-                done.setLdapResult(result);
-                list.addLast(done);
-                break;
+
+                // Entries are encoded once per snapshot, only the envelopes are written
+                return new SearchResponse(messageId, snapshot.entries, hits, 0, hits.length, utf8, attributes,
+                        found.resultCode, null, deadline);
 
             case LdapConstants.ABANDON_REQUEST:
 
-                // Abandon command
-                result = new LdapResult();
-                result.setResultCode(0);
-                LdapResponse response = new LdapResponse();
-                response.setLdapResult(result);
-                list.addLast(response);
-                break;
+                // Abandon request has no response
+                return null;
 
             default:
 
                 // Unsupported command
                 log.debug("Unsupported LDAP command!");
-                result = new LdapResult();
+                LdapResult result = new LdapResult();
                 result.setErrorMessage("Unsupported LDAP command!");
-                response = new LdapResponse();
+                LdapResponse response = new LdapResponse();
                 response.setLdapResult(result);
                 list.addLast(response);
         }
         log.debug("LDAP request processed.");
-        if (!list.isEmpty()) {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            Iterator responses = list.iterator();
-            while (responses.hasNext()) {
-                LdapMessage response = (LdapMessage) responses.next();
-                response.setMessageId(request.getMessageId());
-
-                // Append LDAP response
-                LdapMessage message = new LdapMessage();
-                message.setProtocolOP(response);
-                message.setMessageId(request.getMessageId());
-                ByteBuffer bb = message.encode(null);
-                byte[] a = bb.array();
-                out.write(a);
+        return LDAPResponse.of(request.getMessageId(), list);
+    }
+
+    // --- CONTACT SEARCH ---
+
+    /**
+     * Returns the account named by the "ou" RDN of the search base (eg.
+     * "ou=john@gmail.com"), or null if the base has no such RDN.
+     */
+    private static final String getAccount(SearchRequest search) {
+        LdapDN base = search.getBaseObject();
+        String dn = base == null ? null : base.getUpName();
+        if (dn == null) {
+            return null;
+        }
+        int start = 0;
+        for (int i = 0; i <= dn.length(); i++) {
+            if (i == dn.length() || (dn.charAt(i) == ',' && (i == 0 || dn.charAt(i - 1) != '\\'))) {
+                String rdn = dn.substring(start, i);
+                int equals = rdn.indexOf('=');
+                if (equals != -1 && rdn.substring(0, equals).trim().equalsIgnoreCase("ou")) {
+                    return rdn.substring(equals + 1).trim().replace("\\", "");
+                }
+                start = i + 1;
             }
-            byte[] bytes = out.toByteArray();
-            return ByteBuffer.wrap(bytes);
         }
         return null;
     }
 
-    private static final String encode(String text, boolean utf8)
-            throws Exception {
-        if (utf8) {
-            return new String(text.getBytes("UTF8"), PLATFORM_ENCODING);
+    private final ResultCache.Result fuzzySearch(ContactSnapshot snapshot, int from, int to,
+            SearchFilter filter, long sizeLimit) {
+        String key = filter.fuzzyKey();
+        int[] hits = new int[0];
+        if (key != null) {
+            int maxResults = fuzzyResults;
+            if (sizeLimit > 0 && sizeLimit < maxResults) {
+                maxResults = (int) sizeLimit;
+            }
+            hits = FuzzySearch.search(snapshot, from, to, key, maxResults, fuzzyThreshold);
+            if (log.isDebugEnabled()) {
+                log.debug("Found " + hits.length + " similar contacts.");
+            }
         }
-        return text;
+        return new ResultCache.Result(hits, ResultResponse.SUCCESS);
     }
 
-    private static final void processWrite(SelectionKey key) throws Exception {
-        Object att = key.attachment();
-        if (att == null) {
-            Thread.sleep(100);
-            return;
+    // --- PAGED SEARCH (RFC 2696) ---
+    private static final byte[] NO_COOKIE = new byte[0];
+
+    private static final LDAPResponse processPage(int messageId, PagedResults.Cursor cursor, int pageSize,
+            LDAPConnection connection, boolean utf8, int attributes, long deadline) {
+        int[] hits = cursor.hits;
+        if (pageSize <= 0) {
+
+            // Client abandons the paged search
+            return new SearchResponse(messageId, cursor.snapshot.entries, hits, 0, 0, utf8, attributes,
+                    ResultResponse.SUCCESS, PagedResults.encodeResponse(0, NO_COOKIE), deadline);
+        }
+        int from = cursor.offset;
+        int to = (int) Math.min((long) from + pageSize, hits.length);
+        if (to < hits.length) {
+
+            // More pages follow, store the rest of the hits
+            byte[] cookie = connection.openCursor(new PagedResults.Cursor(cursor.snapshot, hits, to,
+                    cursor.resultCode));
+            return new SearchResponse(messageId, cursor.snapshot.entries, hits, from, to, utf8, attributes,
+                    ResultResponse.SUCCESS,
+                    PagedResults.encodeResponse(hits.length, cookie), deadline);
         }
-        if (att instanceof ByteBuffer) {
-            ByteBuffer buffer = (ByteBuffer) att;
-            if (!buffer.hasRemaining()) {
-                key.attach(new byte[0]);
-                key.interestOps(SelectionKey.OP_READ);
-                return;
+
+        // Last page
+        return new SearchResponse(messageId, cursor.snapshot.entries, hits, from, to, utf8, attributes,
+                cursor.resultCode, PagedResults.encodeResponse(hits.length, NO_COOKIE), deadline);
+    }
+
+    private static final String[] getAttributeNames(SearchRequest search) {
+        Attributes attributes = search.getAttributes();
+        if (attributes == null || attributes.size() == 0) {
+            return null;
+        }
+        String[] names = new String[attributes.size()];
+        NamingEnumeration<String> ids = attributes.getIDs();
+        try {
+            for (int i = 0; i < names.length && ids.hasMore(); i++) {
+                names[i] = ids.next();
             }
-            SocketChannel channel = (SocketChannel) key.channel();
-            channel.write(buffer);
+        } catch (NamingException invalidList) {
+            log.debug(invalidList);
+            return null;
+        }
+        return names;
+    }
+
+    // --- ERROR RESPONSES ---
+
+    /**
+     * Returns the response of a request rejected because the worker queue is
+     * full.
+     */
+    static final LDAPResponse processBusy(LdapMessage request) {
+        return processError(request, ResultResponse.BUSY, "Server is busy!");
+    }
+
+    /**
+     * Returns the LDAPResult response of a failed request with the given
+     * result code, or null if the request has no response.
+     */
+    static final LDAPResponse processError(LdapMessage request, int resultCode, String errorMessage) {
+        switch (request.getMessageType()) {
+            case LdapConstants.BIND_REQUEST:
+                return new ResultResponse(request.getMessageId(), ResultResponse.BIND_RESPONSE, resultCode,
+                        errorMessage);
+            case LdapConstants.SEARCH_REQUEST:
+                return new ResultResponse(request.getMessageId(), ResultResponse.SEARCH_RESULT_DONE,
+                        resultCode, errorMessage);
+            default:
+                return null;
         }
     }
 
@@ -629,5 +604,11 @@ final class LDAPListener extends Thread {
             }
         } catch (Exception ignored) {
         }
+
+        // Stop reactors and workers
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i].interrupt();
+        }
+        workers.shutdownNow();
     }
 }
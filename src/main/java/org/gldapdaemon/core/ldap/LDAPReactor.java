@@ -0,0 +1,396 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.directory.shared.asn1.codec.DecoderException;
+import org.apache.directory.shared.ldap.codec.LdapConstants;
+import org.apache.directory.shared.ldap.codec.LdapDecoder;
+import org.apache.directory.shared.ldap.codec.LdapMessage;
+import org.apache.directory.shared.ldap.codec.LdapMessageContainer;
+import org.apache.directory.shared.ldap.codec.abandon.AbandonRequest;
+import org.apache.directory.shared.ldap.codec.search.SearchRequest;
+
+/**
+ * LDAP I/O reactor thread. Reads and decodes the requests of the connections
+ * assigned to it by the listener, passes them to the worker pool and writes
+ * the completed responses, using its own selector. Clients may pipeline
+ * requests; every complete message in the read buffer is dispatched and the
+ * responses are written back in request order.
+ */
+final class LDAPReactor extends Thread {
+
+    // --- CONSTANTS ---
+    private static final int HIGH_WATER_MARK = 2 * BufferPool.LARGE;
+    // --- LOGGER ---
+    private static final Log log = LogFactory.getLog(LDAPReactor.class);
+    // --- VARIABLES ---
+    private final LdapDecoder decoder = new LdapDecoder();
+    private final LDAPListener listener;
+    private final BufferPool pool;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<SocketChannel> registrations = new ConcurrentLinkedQueue<SocketChannel>();
+    private final ConcurrentLinkedQueue<RequestTask> completions = new ConcurrentLinkedQueue<RequestTask>();
+    private final IdleTimer idleTimer;
+
+    // --- CONSTRUCTOR ---
+    LDAPReactor(LDAPListener listener, int index) throws IOException {
+        super("LDAP reactor #" + index);
+        this.listener = listener;
+        this.pool = listener.bufferPool;
+        selector = Selector.open();
+        if (listener.idleTimeout > 0) {
+            idleTimer = new IdleTimer(listener.idleTimeout);
+        } else {
+            idleTimer = null;
+        }
+
+        // Start thread
+        start();
+    }
+
+    // --- CONNECTION HAND-OFF ---
+    final void register(SocketChannel channel) {
+        registrations.add(channel);
+        selector.wakeup();
+    }
+
+    // --- REQUEST LISTENER LOOP ---
+    public final void run() {
+
+        // Create variables
+        SelectionKey key;
+        SocketChannel channel;
+        Iterator<SelectionKey> keys;
+        long timeout = idleTimer == null ? 0 : idleTimer.tick();
+        int n;
+
+        // Reactor loop
+        for (;;) {
+            try {
+                n = selector.select(timeout);
+                if (isInterrupted()) {
+                    break;
+                }
+            } catch (ClosedSelectorException interrupt) {
+                break;
+            } catch (Exception selectError) {
+                // Unknown exception - stop reactor
+                log.warn("Unable to select sockets!", selectError);
+                break;
+            }
+
+            // Register connections accepted by the listener
+            while ((channel = registrations.poll()) != null) {
+                try {
+                    LDAPConnection connection = new LDAPConnection(channel, listener.maxRequestSize);
+                    channel.register(selector, SelectionKey.OP_READ, connection);
+                    if (idleTimer != null) {
+                        idleTimer.schedule(connection);
+                    }
+                } catch (Exception registerError) {
+                    listener.connections.decrementAndGet();
+                    LDAPListener.closeSocket(channel);
+                    log.debug(registerError);
+                }
+            }
+
+            // Write responses completed by the workers
+            processCompletions();
+
+            // Close idle connections
+            if (idleTimer != null) {
+                processIdle();
+            }
+            if (n == 0) {
+                continue;
+            }
+
+            // Look at each key in the selected set
+            keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                key = keys.next();
+                keys.remove();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        // Read from socket connection
+                        processRead(key);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        // Write to socket connection
+                        processWrite(key);
+                    }
+                } catch (IOException socketClosed) {
+                    close(key);
+                } catch (Exception processingException) {
+                    close(key);
+                    log.warn(processingException.getMessage(), processingException);
+                }
+            }
+        }
+        closeAll();
+        log.debug(getName() + " stopped.");
+    }
+
+    // --- LDAP REQUEST PROCESSOR ---
+    private final void processRead(SelectionKey key) throws Exception {
+
+        // Read available bytes into the connection's buffer
+        LDAPConnection connection = (LDAPConnection) key.attachment();
+        int len = connection.read();
+        if (len == -1) {
+            throw new IOException();
+        }
+        processRequests(key, connection);
+    }
+
+    private final void processRequests(SelectionKey key, LDAPConnection connection) throws Exception {
+        ByteBuffer buffer;
+        while (connection.canAccept() && (buffer = connection.nextRequest()) != null) {
+
+            // Decode the complete LDAP message
+            int offset = buffer.position();
+            int length = buffer.remaining();
+            LdapMessageContainer container = new LdapMessageContainer();
+            try {
+                decoder.decode(buffer, container);
+            } catch (DecoderException emptyStringException) {
+                String msg = emptyStringException.getMessage();
+                if (msg != null && (msg.indexOf("empty") != -1 || msg.indexOf("transition") != -1)) {
+                    // All contacts requested
+                    int id = container.getMessageId();
+                    SearchRequest search = new SearchRequest();
+                    search.setMessageId(id);
+                    LdapMessage ldap = new LdapMessage();
+                    ldap.setMessageId(id);
+                    ldap.setProtocolOP(search);
+                    container.setLdapMessage(ldap);
+                } else {
+                    throw emptyStringException;
+                }
+            } finally {
+                connection.consume();
+            }
+            LdapMessage request = container.getLdapMessage();
+            switch (request.getMessageType()) {
+                case LdapConstants.UNBIND_REQUEST:
+
+                    // Client closes the session
+                    close(key);
+                    return;
+
+                case LdapConstants.ABANDON_REQUEST:
+
+                    // Drop the response of a request in flight
+                    AbandonRequest abandon = request.getAbandonRequest();
+                    connection.abandon(abandon.getAbandonedMessageId());
+                    continue;
+
+                default:
+
+                    // Request controls (still in the read buffer)
+                    PagedResults paging = null;
+                    if (request.getMessageType() == LdapConstants.SEARCH_REQUEST) {
+                        paging = PagedResults.parse(buffer.array(), offset, length);
+                    }
+
+                    // Pass LDAP request to the worker pool
+                    PendingRequest pending = connection.add(request.getMessageId());
+                    try {
+                        listener.execute(new RequestTask(key, connection, pending, request, paging,
+                                !container.isGrammarEndAllowed()));
+                    } catch (RejectedExecutionException queueFull) {
+                        log.warn("LDAP worker queue is full, request rejected.");
+                        pending.complete(LDAPListener.processBusy(request));
+                    }
+            }
+        }
+        updateInterest(key, connection);
+    }
+
+    // --- PROCESS REQUEST ON A WORKER THREAD ---
+    private final class RequestTask implements Runnable {
+
+        private final SelectionKey key;
+        private final LDAPConnection connection;
+        private final PendingRequest pending;
+        private final LdapMessage request;
+        private final PagedResults paging;
+        private final boolean utf8;
+
+        private RequestTask(SelectionKey key, LDAPConnection connection, PendingRequest pending,
+                LdapMessage request, PagedResults paging, boolean utf8) {
+            this.key = key;
+            this.connection = connection;
+            this.pending = pending;
+            this.request = request;
+            this.paging = paging;
+            this.utf8 = utf8;
+        }
+
+        public final void run() {
+            try {
+                pending.complete(listener.processRequest(request, utf8, connection, paging));
+            } catch (Exception processingException) {
+
+                // Only this request fails, the connection and its other
+                // requests are served as usual
+                pending.complete(LDAPListener.processError(request, ResultResponse.OPERATIONS_ERROR,
+                        "Unable to process request!"));
+                log.warn(processingException.getMessage(), processingException);
+            }
+
+            // Post response back to the reactor
+            completions.add(this);
+            selector.wakeup();
+        }
+    }
+
+    private final void processCompletions() {
+        RequestTask task;
+        while ((task = completions.poll()) != null) {
+            SelectionKey key = task.key;
+            if (!key.isValid()) {
+                continue;
+            }
+            try {
+                LDAPConnection connection = (LDAPConnection) key.attachment();
+                if (connection.canAccept()) {
+
+                    // Dispatch requests held back by the pipeline limit
+                    processRequests(key, connection);
+                } else {
+                    updateInterest(key, connection);
+                }
+            } catch (IOException socketClosed) {
+                close(key);
+            } catch (Exception processingException) {
+                close(key);
+                log.warn(processingException.getMessage(), processingException);
+            }
+        }
+    }
+
+    // --- RESPONSE WRITER ---
+    private final void processWrite(SelectionKey key) throws Exception {
+        LDAPConnection connection = (LDAPConnection) key.attachment();
+        LDAPResponse response;
+        for (;;) {
+
+            // Encode the next batches while only a little is queued
+            while (connection.queuedBytes() < HIGH_WATER_MARK
+                    && (response = connection.nextResponse()) != null) {
+                ByteBuffer buffer = pool.acquire(response.sizeHint());
+                if (response.fill(buffer)) {
+                    connection.responseSent();
+                }
+                buffer.flip();
+                if (buffer.hasRemaining()) {
+                    connection.enqueue(buffer);
+                } else {
+                    pool.release(buffer);
+                }
+            }
+
+            // Send queued buffers with one gathering write
+            if (!connection.flush(pool)) {
+
+                // Socket buffer is full, wait for the next OP_WRITE
+                break;
+            }
+            if (connection.nextResponse() == null) {
+                break;
+            }
+        }
+        updateInterest(key, connection);
+    }
+
+    private static final void updateInterest(SelectionKey key, LDAPConnection connection) {
+        int ops = 0;
+        if (connection.canAccept()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (connection.hasOutput()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    private final void processIdle() {
+        ArrayList<LDAPConnection> expired = idleTimer.expire(System.currentTimeMillis());
+        if (expired != null) {
+            for (int i = 0; i < expired.size(); i++) {
+                SelectionKey key = expired.get(i).channel.keyFor(selector);
+                if (key != null) {
+                    log.debug("Closing idle LDAP connection.");
+                    close(key);
+                }
+            }
+        }
+    }
+
+    private final void close(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        LDAPConnection connection = (LDAPConnection) key.attachment();
+        key.cancel();
+        connection.release(pool);
+        LDAPListener.closeSocket(connection.channel);
+        listener.connections.decrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("LDAP connection closed (" + connection.requests + " requests, "
+                    + connection.bytesIn + " bytes in, " + connection.bytesOut + " bytes out).");
+        }
+    }
+
+    private final void closeAll() {
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            LDAPListener.closeSocket(channel);
+        }
+        try {
+            Iterator<SelectionKey> keys = selector.keys().iterator();
+            while (keys.hasNext()) {
+                LDAPListener.closeSocket((SocketChannel) keys.next().channel());
+            }
+        } catch (Exception ignored) {
+        }
+        try {
+            selector.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    // --- STOP REACTOR ---
+    public final void interrupt() {
+
+        // Interrupt thread (the loop closes the connections)
+        super.interrupt();
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,126 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import org.apache.directory.shared.asn1.Asn1Object;
+import org.apache.directory.shared.ldap.codec.LdapMessage;
+
+/**
+ * Response of one LDAP request. The messages of the response are encoded
+ * lazily, one buffer at a time, when the reactor has room to send them.
+ */
+abstract class LDAPResponse {
+
+    // --- VARIABLES ---
+    final int messageId;
+    private ByteBuffer pending;
+
+    // --- CONSTRUCTOR ---
+    LDAPResponse(int messageId) {
+        this.messageId = messageId;
+    }
+
+    /**
+     * Encodes the next LDAP message of this response, or returns null when
+     * the response is complete.
+     */
+    abstract ByteBuffer nextMessage() throws Exception;
+
+    /**
+     * Returns the preferred output buffer size for the next batch.
+     */
+    int sizeHint() {
+        return BufferPool.LARGE;
+    }
+
+    /**
+     * Copies as many encoded bytes into the buffer as fit. Returns true when
+     * the whole response has been copied.
+     */
+    boolean fill(ByteBuffer buffer) throws Exception {
+        while (buffer.hasRemaining()) {
+            if (pending == null) {
+                pending = nextMessage();
+                if (pending == null) {
+                    return true;
+                }
+            }
+            if (!drain(buffer)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the rest of the message set by {@link #hold(ByteBuffer)} into
+     * the buffer. Returns false if it did not fit.
+     */
+    final boolean drain(ByteBuffer buffer) {
+        if (pending == null) {
+            return true;
+        }
+        if (pending.remaining() <= buffer.remaining()) {
+            buffer.put(pending);
+            pending = null;
+            return true;
+        }
+
+        // Copy the head of a large message
+        int limit = pending.limit();
+        pending.limit(pending.position() + buffer.remaining());
+        buffer.put(pending);
+        pending.limit(limit);
+        return false;
+    }
+
+    final void hold(ByteBuffer message) {
+        pending = message;
+    }
+
+    // --- LDAP MESSAGE ENCODER ---
+    static final ByteBuffer encode(Asn1Object protocolOp, int messageId)
+            throws Exception {
+        LdapMessage message = new LdapMessage();
+        message.setProtocolOP(protocolOp);
+        message.setMessageId(messageId);
+        return ByteBuffer.wrap(message.encode(null).array());
+    }
+
+    // --- FIXED LIST OF MESSAGES ---
+    static final LDAPResponse of(int messageId, LinkedList messages) {
+        return new MessageList(messageId, messages);
+    }
+
+    private static final class MessageList extends LDAPResponse {
+
+        private final LinkedList messages;
+
+        private MessageList(int messageId, LinkedList messages) {
+            super(messageId);
+            this.messages = messages;
+        }
+
+        final ByteBuffer nextMessage() throws Exception {
+            if (messages.isEmpty()) {
+                return null;
+            }
+            LdapMessage response = (LdapMessage) messages.removeFirst();
+            response.setMessageId(messageId);
+            return encode(response, messageId);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Simple Paged Results control (RFC 2696) of a search request.
+ */
+final class PagedResults {
+
+    // --- CONSTANTS ---
+    static final String OID = "1.2.840.113556.1.4.319";
+    private static final byte[] OID_BYTES = ResultResponse.toBytes(OID);
+    private static final int CONTROLS_TAG = 0xa0;
+    private static final int BOOLEAN_TAG = 0x01;
+    // --- VARIABLES ---
+    final int size;
+    final byte[] cookie;
+    final boolean critical;
+
+    // --- CONSTRUCTOR ---
+    private PagedResults(int size, byte[] cookie, boolean critical) {
+        this.size = size;
+        this.cookie = cookie;
+        this.critical = critical;
+    }
+
+    // --- REQUEST CONTROL PARSER ---
+
+    /**
+     * Finds the paged results control in an encoded LDAPMessage. Returns
+     * null if the request has no such control.
+     */
+    static final PagedResults parse(byte[] bytes, int offset, int length) throws IOException {
+        BerReader reader = new BerReader(bytes, offset, length);
+        reader.readTag();
+        reader.enter(reader.readLength());
+
+        // Skip message ID and protocol operation
+        reader.readTag();
+        reader.skip(reader.readLength());
+        reader.readTag();
+        reader.skip(reader.readLength());
+
+        // Controls
+        while (reader.hasRemaining()) {
+            int tag = reader.readTag();
+            int len = reader.readLength();
+            if (tag != CONTROLS_TAG) {
+                reader.skip(len);
+                continue;
+            }
+            int controlsLimit = reader.enter(len);
+            while (reader.hasRemaining()) {
+                reader.readTag();
+                int controlLimit = reader.enter(reader.readLength());
+                reader.readTag();
+                String oid = reader.readString(reader.readLength());
+                boolean critical = false;
+                byte[] value = null;
+                while (reader.hasRemaining()) {
+                    tag = reader.readTag();
+                    len = reader.readLength();
+                    if (tag == BOOLEAN_TAG) {
+                        critical = reader.readInteger(len) != 0;
+                    } else if (tag == BerCodec.OCTET_STRING_TAG) {
+                        value = reader.readBytes(len);
+                    } else {
+                        reader.skip(len);
+                    }
+                }
+                reader.leave(controlLimit);
+                if (OID.equals(oid) && value != null) {
+                    return parseValue(value, critical);
+                }
+            }
+            reader.leave(controlsLimit);
+        }
+        return null;
+    }
+
+    private static final PagedResults parseValue(byte[] value, boolean critical) throws IOException {
+        BerReader reader = new BerReader(value, 0, value.length);
+        reader.readTag();
+        reader.enter(reader.readLength());
+        reader.readTag();
+        int size = reader.readInteger(reader.readLength());
+        reader.readTag();
+        byte[] cookie = reader.readBytes(reader.readLength());
+        return new PagedResults(size, cookie, critical);
+    }
+
+    // --- RESPONSE CONTROL ENCODER ---
+
+    /**
+     * Encodes the Controls element ([0] SEQUENCE OF Control) of the
+     * SearchResultDone message.
+     */
+    static final byte[] encodeResponse(int estimate, byte[] cookie) {
+        int valueLength = BerCodec.sizeOf(BerCodec.integerLength(estimate)) + BerCodec.sizeOf(cookie.length);
+        int controlLength = BerCodec.sizeOf(OID_BYTES.length) + BerCodec.sizeOf(BerCodec.sizeOf(valueLength));
+        ByteBuffer out = ByteBuffer.allocate(BerCodec.sizeOf(BerCodec.sizeOf(controlLength)));
+        BerCodec.writeHeader(out, CONTROLS_TAG, BerCodec.sizeOf(controlLength));
+        BerCodec.writeHeader(out, BerCodec.SEQUENCE_TAG, controlLength);
+        BerCodec.writeOctetString(out, OID_BYTES);
+        BerCodec.writeHeader(out, BerCodec.OCTET_STRING_TAG, BerCodec.sizeOf(valueLength));
+        BerCodec.writeHeader(out, BerCodec.SEQUENCE_TAG, valueLength);
+        BerCodec.writeInteger(out, BerCodec.INTEGER_TAG, estimate);
+        BerCodec.writeOctetString(out, cookie);
+        return out.array();
+    }
+
+    // --- SERVER-SIDE CURSOR ---
+
+    /**
+     * Remaining results of a paged search. Only valid while the contact
+     * list generation it was created from is current.
+     */
+    static final class Cursor {
+
+        final ContactSnapshot snapshot;
+        final int[] hits;
+        final int offset;
+        final int resultCode;
+
+        Cursor(ContactSnapshot snapshot, int[] hits, int offset, int resultCode) {
+            this.snapshot = snapshot;
+            this.hits = hits;
+            this.offset = offset;
+            this.resultCode = resultCode;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Search of some ranges of a contact snapshot (eg. the partitions of the
+ * accounts), in parallel on the worker pool. Only searches comparing more
+ * contacts than the chunk size are parallel: their ranges are split into
+ * chunks, so a filter without index candidates is evaluated on every core.
+ * Smaller searches are done on the requesting worker (helper tasks would
+ * take the queue slots of the client requests). The requesting worker
+ * searches chunks too, and it only waits for the chunks taken by other
+ * workers, so the search completes even if the pool has no idle thread.
+ */
+final class ParallelSearch implements Runnable {
+
+    // --- VARIABLES ---
+    private final ContactSnapshot snapshot;
+    private final SearchFilter filter;
+    private final int[] candidates;
+    private final int[] bounds;
+    private final long sizeLimit;
+    private final long deadline;
+    private final ResultCache.Result[] results;
+    private final AtomicInteger next = new AtomicInteger();
+    private final CountDownLatch done;
+    private volatile RuntimeException failure;
+
+    // --- CONSTRUCTOR ---
+    private ParallelSearch(ContactSnapshot snapshot, SearchFilter filter, int[] candidates, int[] bounds,
+            long sizeLimit, long deadline) {
+        this.snapshot = snapshot;
+        this.filter = filter;
+        this.candidates = candidates;
+        this.bounds = bounds;
+        this.sizeLimit = sizeLimit;
+        this.deadline = deadline;
+        results = new ResultCache.Result[bounds.length - 1];
+        done = new CountDownLatch(results.length);
+    }
+
+    // --- SEARCH ---
+
+    /**
+     * Finds the matching contacts of the ranges (the range i is from
+     * bounds[i] to bounds[i + 1]) using at most the given number of
+     * threads. If more contacts have to be compared than the chunk size,
+     * the ranges are split into chunks and searched in parallel, otherwise
+     * they are searched on the calling thread. The hits are returned in
+     * range order.
+     */
+    static final ResultCache.Result search(Executor executor, int threads, int chunkSize,
+            ContactSnapshot snapshot, SearchFilter filter, int[] bounds, long sizeLimit, long deadline)
+            throws InterruptedException {
+        int[] candidates = filter.candidates(snapshot);
+        int work = candidates == null ? bounds[bounds.length - 1] - bounds[0] : candidates.length;
+        boolean parallel = work > chunkSize && threads > 1;
+        if (parallel) {
+            bounds = split(bounds, chunkSize);
+        }
+        int count = bounds.length - 1;
+        if (count == 1) {
+            return search(snapshot, filter, candidates, bounds[0], bounds[1], sizeLimit, deadline);
+        }
+        ParallelSearch search = new ParallelSearch(snapshot, filter, candidates, bounds, sizeLimit, deadline);
+        int helpers = parallel ? Math.min(count, threads) - 1 : 0;
+        try {
+            for (int i = 0; i < helpers; i++) {
+                executor.execute(search);
+            }
+        } catch (RejectedExecutionException queueFull) {
+            // Search the remaining ranges on this thread
+        }
+        search.run();
+        search.done.await();
+        if (search.failure != null) {
+            throw search.failure;
+        }
+        return search.merge();
+    }
+
+    public final void run() {
+        int i;
+        while ((i = next.getAndIncrement()) < results.length) {
+            try {
+                results[i] = search(snapshot, filter, candidates, bounds[i], bounds[i + 1], sizeLimit, deadline);
+            } catch (RuntimeException searchError) {
+                failure = searchError;
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Splits the ranges into chunks of at most the given size.
+     */
+    private static final int[] split(int[] bounds, int chunkSize) {
+        int count = 0;
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            count += Math.max(1, (bounds[i + 1] - bounds[i] + chunkSize - 1) / chunkSize);
+        }
+        int[] chunks = new int[count + 1];
+        int k = 0;
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            int from = bounds[i];
+            int length = bounds[i + 1] - from;
+            int pieces = Math.max(1, (length + chunkSize - 1) / chunkSize);
+            for (int p = 0; p < pieces; p++) {
+                chunks[k++] = from + (int) ((long) length * p / pieces);
+            }
+        }
+        chunks[k] = bounds[bounds.length - 1];
+        return chunks;
+    }
+
+    private final ResultCache.Result merge() {
+        int resultCode = ResultResponse.SUCCESS;
+        int total = 0;
+        for (int i = 0; i < results.length; i++) {
+            total += results[i].hits.length;
+            if (results[i].resultCode == ResultResponse.TIME_LIMIT_EXCEEDED) {
+                resultCode = ResultResponse.TIME_LIMIT_EXCEEDED;
+            } else if (results[i].resultCode != ResultResponse.SUCCESS && resultCode == ResultResponse.SUCCESS) {
+                resultCode = results[i].resultCode;
+            }
+        }
+        int[] hits = new int[total];
+        int offset = 0;
+        for (int i = 0; i < results.length; i++) {
+            System.arraycopy(results[i].hits, 0, hits, offset, results[i].hits.length);
+            offset += results[i].hits.length;
+        }
+        if (sizeLimit > 0 && total > sizeLimit) {
+            hits = Arrays.copyOf(hits, (int) sizeLimit);
+            if (resultCode == ResultResponse.SUCCESS) {
+                resultCode = ResultResponse.SIZE_LIMIT_EXCEEDED;
+            }
+        }
+        return new ResultCache.Result(hits, resultCode);
+    }
+
+    // --- RANGE SCAN ---
+    private static final ResultCache.Result search(ContactSnapshot snapshot, SearchFilter filter,
+            int[] candidates, int from, int to, long sizeLimit, long deadline) {
+
+        // Candidates of the range (they are sorted)
+        int first = from;
+        int end = to;
+        if (candidates != null) {
+            first = Arrays.binarySearch(candidates, from);
+            if (first < 0) {
+                first = -first - 1;
+            }
+            end = Arrays.binarySearch(candidates, first, candidates.length, to);
+            if (end < 0) {
+                end = -end - 1;
+            }
+        }
+        int resultCode = ResultResponse.SUCCESS;
+        int[] hits = new int[Math.min(end - first, 64)];
+        int count = 0;
+        int n;
+        for (int i = first; i < end; i++) {
+            if (deadline != 0 && ((i - first) & 0xff) == 0xff && System.currentTimeMillis() > deadline) {
+                resultCode = ResultResponse.TIME_LIMIT_EXCEEDED;
+                break;
+            }
+            n = candidates == null ? i : candidates[i];
+            if (filter.matches(snapshot, n)) {
+                if (sizeLimit > 0 && count >= sizeLimit) {
+                    resultCode = ResultResponse.SIZE_LIMIT_EXCEEDED;
+                    break;
+                }
+                if (count == hits.length) {
+                    hits = Arrays.copyOf(hits, count * 2);
+                }
+                hits[count++] = n;
+            }
+        }
+        if (count != hits.length) {
+            hits = Arrays.copyOf(hits, count);
+        }
+        return new ResultCache.Result(hits, resultCode);
+    }
+}
@@ -0,0 +1,36 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+/**
+ * LDAP request in flight on a connection. Completed by a worker thread,
+ * written by the reactor in request order.
+ */
+final class PendingRequest {
+
+    // --- VARIABLES ---
+    final int messageId;
+    volatile LDAPResponse response;
+    volatile boolean completed;
+    boolean abandoned;
+
+    // --- CONSTRUCTOR ---
+    PendingRequest(int messageId) {
+        this.messageId = messageId;
+    }
+
+    final void complete(LDAPResponse response) {
+        this.response = response;
+        completed = true;
+    }
+}
@@ -0,0 +1,40 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.util.Arrays;
+
+/**
+ * Growable posting list used while an index is built. Contact indexes must
+ * be added in ascending order; repeated indexes are ignored.
+ */
+final class PostingList {
+
+    // --- VARIABLES ---
+    private int[] ids = new int[4];
+    private int size;
+
+    final void add(int id) {
+        if (size != 0 && ids[size - 1] == id) {
+            return;
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        ids[size++] = id;
+    }
+
+    final int[] toArray() {
+        return Arrays.copyOf(ids, size);
+    }
+}
@@ -0,0 +1,252 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Sorted token index of some folded columns of a contact snapshot. The words
+ * of the values (runs of letters and digits) are kept in a sorted array with
+ * their posting lists, so the tokens starting with a prefix are a contiguous
+ * range found by binary search.
+ */
+final class PrefixIndex {
+
+    // --- VARIABLES ---
+    private final String[] tokens;
+    private final int[][] postings;
+    private final int[] offsets;
+    private final int maxLength;
+
+    // --- CONSTRUCTOR ---
+
+    /**
+     * Creates the index of the given folded columns of a snapshot. If
+     * numbers is true, the tokens are the reversed digits of the phone
+     * number columns.
+     */
+    PrefixIndex(ContactSnapshot snapshot, int[] columns, boolean numbers) {
+        HashMap<String, PostingList> lists = new HashMap<String, PostingList>();
+        int count = snapshot.size();
+        for (int n = 0; n < count; n++) {
+            for (int c = 0; c < columns.length; c++) {
+                FoldedColumn column = numbers ? snapshot.number(columns[c], n) : snapshot.value(columns[c], n);
+                char[] chars = column.chars;
+                int end = column.end(n);
+                int start = -1;
+                for (int i = column.start(n); i <= end; i++) {
+                    if (i < end && Character.isLetterOrDigit(chars[i])) {
+                        if (start == -1) {
+                            start = i;
+                        }
+                    } else if (start != -1) {
+                        String token = numbers ? reverse(chars, start, i) : new String(chars, start, i - start);
+                        PostingList posting = lists.get(token);
+                        if (posting == null) {
+                            posting = new PostingList();
+                            lists.put(token, posting);
+                        }
+                        posting.add(n);
+                        start = -1;
+                    }
+                }
+            }
+        }
+        tokens = lists.keySet().toArray(new String[lists.size()]);
+        Arrays.sort(tokens);
+        postings = new int[tokens.length][];
+        offsets = new int[tokens.length + 1];
+        int longest = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            postings[i] = lists.get(tokens[i]).toArray();
+            offsets[i + 1] = offsets[i] + postings[i].length;
+            longest = Math.max(longest, tokens[i].length());
+        }
+        maxLength = longest;
+    }
+
+    // --- QUERY ---
+
+    /**
+     * Returns the number of postings of the tokens starting with the first
+     * word of the (lowercase) prefix, or -1 if the prefix does not start
+     * with a word.
+     */
+    final int estimate(String prefix) {
+        String word = firstWord(prefix);
+        if (word == null) {
+            return -1;
+        }
+        return offsets[upper(word)] - offsets[lower(word)];
+    }
+
+    /**
+     * Returns the sorted indexes of the contacts having a token that starts
+     * with the first word of the prefix, or null if the prefix does not
+     * start with a word.
+     */
+    final int[] candidates(String prefix) {
+        String word = firstWord(prefix);
+        if (word == null) {
+            return null;
+        }
+        int from = lower(word);
+        int to = upper(word);
+        if (to - from == 1) {
+            return postings[from];
+        }
+        int[] result = new int[offsets[to] - offsets[from]];
+        for (int i = from; i < to; i++) {
+            System.arraycopy(postings[i], 0, result, offsets[i] - offsets[from], postings[i].length);
+        }
+
+        // Merge the postings of the range
+        Arrays.sort(result);
+        int size = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (size == 0 || result[size - 1] != result[i]) {
+                result[size++] = result[i];
+            }
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    // --- FUZZY QUERY ---
+
+    /**
+     * Scores the contacts having a token that starts with the (lowercase)
+     * word within the given number of edits (insertions, deletions,
+     * substitutions and adjacent transpositions). Only the contacts of the
+     * range [from, to) are scored, the score of contact n (at n - from) is
+     * raised to the length of the word minus the edits, plus one. The rows
+     * of the edit distance matrix are shared by the tokens with a common
+     * prefix (the neighbours in the sorted array).
+     */
+    final void similar(String word, int maxEdits, int[] scores, int from, int to) {
+        int length = word.length();
+        int[][] rows = new int[maxLength + 1][length + 1];
+        int[] minimums = new int[maxLength + 1];
+        for (int i = 0; i <= length; i++) {
+            rows[0][i] = i;
+        }
+        String previous = "";
+        int valid = 0;
+        for (int t = 0; t < tokens.length; t++) {
+            String token = tokens[t];
+
+            // Rows of the common prefix are already computed
+            int j = Math.min(valid, common(previous, token));
+            previous = token;
+            int best = Integer.MAX_VALUE;
+            for (int r = 0; r <= j; r++) {
+                best = Math.min(best, rows[r][length]);
+            }
+            boolean hopeless = j > 0 && minimums[j] > maxEdits && minimums[j - 1] > maxEdits;
+            while (!hopeless && j < token.length()) {
+                j++;
+                char c = token.charAt(j - 1);
+                int[] row = rows[j];
+                int[] above = rows[j - 1];
+                row[0] = j;
+                int min = j;
+                for (int i = 1; i <= length; i++) {
+                    char q = word.charAt(i - 1);
+                    int d = Math.min(above[i - 1] + (q == c ? 0 : 1), Math.min(above[i], row[i - 1]) + 1);
+                    if (i > 1 && j > 1 && q == token.charAt(j - 2) && word.charAt(i - 2) == c) {
+                        d = Math.min(d, rows[j - 2][i - 2] + 1);
+                    }
+                    row[i] = d;
+                    min = Math.min(min, d);
+                }
+                minimums[j] = min;
+                best = Math.min(best, row[length]);
+
+                // No longer prefix can get within the limit
+                hopeless = min > maxEdits && minimums[j - 1] > maxEdits;
+            }
+            valid = j;
+            if (best <= maxEdits) {
+                int score = length - best + 1;
+                int[] posting = postings[t];
+                int i = Arrays.binarySearch(posting, from);
+                for (i = i < 0 ? -i - 1 : i; i < posting.length && posting[i] < to; i++) {
+                    int n = posting[i] - from;
+                    if (scores[n] < score) {
+                        scores[n] = score;
+                    }
+                }
+            }
+        }
+    }
+
+    private static final String reverse(char[] chars, int start, int end) {
+        char[] reversed = new char[end - start];
+        for (int i = 0; i < reversed.length; i++) {
+            reversed[i] = chars[end - 1 - i];
+        }
+        return new String(reversed);
+    }
+
+    private static final int common(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static final String firstWord(String prefix) {
+        int end = 0;
+        while (end < prefix.length() && Character.isLetterOrDigit(prefix.charAt(end))) {
+            end++;
+        }
+        return end == 0 ? null : prefix.substring(0, end);
+    }
+
+    /**
+     * Returns the index of the first token not less than the prefix.
+     */
+    private final int lower(String prefix) {
+        int low = 0;
+        int high = tokens.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tokens[middle].compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index of the first token after the ones starting with the
+     * prefix.
+     */
+    private final int upper(String prefix) {
+        int low = lower(prefix);
+        int high = tokens.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tokens[middle].startsWith(prefix)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
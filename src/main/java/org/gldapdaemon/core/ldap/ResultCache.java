@@ -0,0 +1,122 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * LRU cache of search results (hit lists of a contact snapshot), keyed by
+ * the normalized filter and the size limit. The entries are encoded once
+ * per snapshot and projected at send time, so the requested attributes and the charset mode
+ * are not part of the key. Bounded by the number of results and by the total
+ * number of cached hits; cleared when the contact list generation changes.
+ */
+final class ResultCache {
+
+    // --- CONSTANTS ---
+    private static final int MAX_HITS = 1 << 20;
+    // --- LOGGER ---
+    private static final Log log = LogFactory.getLog(ResultCache.class);
+    // --- VARIABLES ---
+    private final int maxResults;
+    private final LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>(16, 0.75f, true);
+    private long generation = -1;
+    private int cachedHits;
+    // --- STATISTICS ---
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // --- CONSTRUCTOR ---
+    ResultCache(int maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    /**
+     * Cached result of a search.
+     */
+    static final class Result {
+
+        final int[] hits;
+        final int resultCode;
+
+        Result(int[] hits, int resultCode) {
+            this.hits = hits;
+            this.resultCode = resultCode;
+        }
+    }
+
+    // --- CACHE OPERATIONS ---
+    final synchronized Result get(long snapshotGeneration, String key) {
+        if (maxResults < 1 || !isCurrent(snapshotGeneration)) {
+            return null;
+        }
+        Result result = results.get(key);
+        if (result == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    final synchronized void put(long snapshotGeneration, String key, Result result) {
+        if (maxResults < 1 || result.hits.length > MAX_HITS / 4 || !isCurrent(snapshotGeneration)) {
+            return;
+        }
+        Result previous = results.put(key, result);
+        if (previous != null) {
+            cachedHits -= previous.hits.length;
+        }
+        cachedHits += result.hits.length;
+
+        // Evict least recently used results
+        Iterator<Map.Entry<String, Result>> entries = results.entrySet().iterator();
+        while ((results.size() > maxResults || cachedHits > MAX_HITS) && entries.hasNext()) {
+            Result eldest = entries.next().getValue();
+            entries.remove();
+            cachedHits -= eldest.hits.length;
+            evictions++;
+        }
+    }
+
+    private final boolean isCurrent(long snapshotGeneration) {
+        if (snapshotGeneration == generation) {
+            return true;
+        }
+        if (snapshotGeneration < generation) {
+
+            // Request of an outdated snapshot
+            return false;
+        }
+
+        // Contact list replaced
+        if (generation != -1 && log.isDebugEnabled()) {
+            log.debug("Search cache invalidated (" + this + ").");
+        }
+        results.clear();
+        cachedHits = 0;
+        generation = snapshotGeneration;
+        return true;
+    }
+
+    public final synchronized String toString() {
+        return results.size() + " results, " + hits + " hits, " + misses + " misses, " + evictions
+                + " evictions";
+    }
+}
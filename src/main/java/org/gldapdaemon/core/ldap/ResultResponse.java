@@ -0,0 +1,123 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.nio.ByteBuffer;
+
+import org.gldapdaemon.core.StringUtils;
+
+/**
+ * Single LDAPResult response (bind response, search done, etc). Encoded by
+ * hand straight into the pooled output buffer.
+ */
+final class ResultResponse extends LDAPResponse {
+
+    // --- PROTOCOL OP TAGS ---
+    static final int BIND_RESPONSE = 0x61;
+    static final int SEARCH_RESULT_DONE = 0x65;
+    // --- RESULT CODES ---
+    static final int SUCCESS = 0;
+    static final int OPERATIONS_ERROR = 1;
+    static final int TIME_LIMIT_EXCEEDED = 3;
+    static final int SIZE_LIMIT_EXCEEDED = 4;
+    static final int BUSY = 51;
+    static final int UNWILLING_TO_PERFORM = 53;
+    // --- VARIABLES ---
+    private static final byte[] EMPTY = new byte[0];
+    private final int opTag;
+    private final int resultCode;
+    private final byte[] errorMessage;
+    private boolean written;
+
+    // --- CONSTRUCTOR ---
+    ResultResponse(int messageId, int opTag, int resultCode, String errorMessage) {
+        super(messageId);
+        this.opTag = opTag;
+        this.resultCode = resultCode;
+        this.errorMessage = toBytes(errorMessage);
+    }
+
+    final int sizeHint() {
+        return size(messageId, resultCode, errorMessage, null);
+    }
+
+    final boolean fill(ByteBuffer buffer) throws Exception {
+        if (!written && buffer.remaining() >= sizeHint()) {
+            write(buffer, messageId, opTag, resultCode, errorMessage, null);
+            written = true;
+            return true;
+        }
+
+        // Small buffer, the message is copied in parts
+        return super.fill(buffer);
+    }
+
+    final ByteBuffer nextMessage() {
+        if (written) {
+            return null;
+        }
+        written = true;
+        ByteBuffer buffer = ByteBuffer.allocate(sizeHint());
+        write(buffer, messageId, opTag, resultCode, errorMessage, null);
+        buffer.flip();
+        return buffer;
+    }
+
+    // --- LDAPRESULT ENCODER ---
+    static final byte[] toBytes(String errorMessage) {
+        if (errorMessage == null || errorMessage.length() == 0) {
+            return EMPTY;
+        }
+        try {
+            return StringUtils.encodeString(errorMessage, StringUtils.UTF_8);
+        } catch (Exception unsupported) {
+            return EMPTY;
+        }
+    }
+
+    private static final int opLength(int resultCode, byte[] errorMessage) {
+        return BerCodec.sizeOf(BerCodec.integerLength(resultCode)) + BerCodec.sizeOf(0)
+                + BerCodec.sizeOf(errorMessage.length);
+    }
+
+    private static final int messageLength(int messageId, int resultCode, byte[] errorMessage, byte[] controls) {
+        int length = BerCodec.sizeOf(BerCodec.integerLength(messageId))
+                + BerCodec.sizeOf(opLength(resultCode, errorMessage));
+        if (controls != null) {
+            length += controls.length;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the encoded size of the message. The optional controls are an
+     * already encoded Controls ([0]) element.
+     */
+    static final int size(int messageId, int resultCode, byte[] errorMessage, byte[] controls) {
+        return BerCodec.sizeOf(messageLength(messageId, resultCode, errorMessage, controls));
+    }
+
+    static final void write(ByteBuffer out, int messageId, int opTag, int resultCode, byte[] errorMessage,
+            byte[] controls) {
+        int opLength = opLength(resultCode, errorMessage);
+        BerCodec.writeHeader(out, BerCodec.SEQUENCE_TAG, messageLength(messageId, resultCode, errorMessage, controls));
+        BerCodec.writeInteger(out, BerCodec.INTEGER_TAG, messageId);
+        BerCodec.writeHeader(out, opTag, opLength);
+        BerCodec.writeInteger(out, BerCodec.ENUMERATED_TAG, resultCode);
+        BerCodec.writeOctetString(out, EMPTY);
+        BerCodec.writeOctetString(out, errorMessage);
+        if (controls != null) {
+            out.put(controls);
+        }
+    }
+}
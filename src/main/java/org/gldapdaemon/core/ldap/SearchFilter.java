@@ -0,0 +1,936 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.directory.shared.ldap.codec.AttributeValueAssertion;
+import org.apache.directory.shared.ldap.codec.LdapConstants;
+import org.apache.directory.shared.ldap.codec.search.AndFilter;
+import org.apache.directory.shared.ldap.codec.search.AttributeValueAssertionFilter;
+import org.apache.directory.shared.ldap.codec.search.Filter;
+import org.apache.directory.shared.ldap.codec.search.NotFilter;
+import org.apache.directory.shared.ldap.codec.search.OrFilter;
+import org.apache.directory.shared.ldap.codec.search.PresentFilter;
+import org.apache.directory.shared.ldap.codec.search.SubstringFilter;
+import org.gldapdaemon.core.StringUtils;
+
+/**
+ * Search filter (RFC 4515) compiled into a predicate tree over the folded
+ * columns of a contact snapshot (assertion values are folded the same way,
+ * so matching ignores case and diacritics). Besides evaluating the filter,
+ * every node can give a superset of its matches from the substring index;
+ * an AND uses its most selective indexed leg, so only those candidates are
+ * evaluated. The surname and given name are not stored separately, their
+ * assertions are matched against the words of the full name.
+ */
+abstract class SearchFilter {
+
+    // --- CONSTANTS ---
+    private static final String PLATFORM_ENCODING = Charset.defaultCharset().name();
+    private static final int OBJECT_CLASS = -1;
+    private static final int NAME_WORDS = -3;
+    private static final int MIN_PHONE_SUFFIX = 7;
+    private static final String[] OBJECT_CLASSES = {"top", "person", "organizationalperson",
+        "inetorgperson", "mozillaabpersonalpha"};
+    private static final HashMap<String, Integer> ATTRIBUTES = new HashMap<String, Integer>();
+
+    static {
+        attribute(ContactSnapshot.CN, new String[] {"cn", "commonname", "name", "displayname"});
+        attribute(NAME_WORDS, new String[] {"sn", "surname", "givenname", "gn"});
+        attribute(ContactSnapshot.MAIL, new String[] {"mail", "email"});
+        attribute(ContactSnapshot.NOTES, new String[] {"comment", "description"});
+        attribute(ContactSnapshot.MOBILE, new String[] {"telephonenumber", "mobile"});
+        attribute(ContactSnapshot.PHONE, new String[] {"homephone"});
+        attribute(ContactSnapshot.MAIL2, new String[] {"mozillasecondemail", "mailalternateaddress"});
+        attribute(ContactSnapshot.ADDRESS, new String[] {"postaladdress", "homepostaladdress",
+            "homestreet"});
+        attribute(ContactSnapshot.PAGER, new String[] {"pager"});
+        attribute(ContactSnapshot.FAX, new String[] {"facsimiletelephonenumber"});
+        attribute(ContactSnapshot.TITLE, new String[] {"title"});
+        attribute(ContactSnapshot.COMPANY, new String[] {"company", "o"});
+        attribute(OBJECT_CLASS, new String[] {"objectclass"});
+    }
+
+    private static final void attribute(int column, String[] names) {
+        for (int i = 0; i < names.length; i++) {
+            ATTRIBUTES.put(names[i], new Integer(column));
+        }
+    }
+
+    // --- PREDICATE ---
+
+    /**
+     * Returns true if the contact at the given index matches the filter.
+     */
+    abstract boolean matches(ContactSnapshot snapshot, int index);
+
+    /**
+     * Returns the sorted indexes of a superset of the matching contacts, or
+     * null if the filter cannot be narrowed with the index.
+     */
+    int[] candidates(ContactSnapshot snapshot) {
+        return null;
+    }
+
+    /**
+     * Returns the estimated number of candidates (the number of contacts if
+     * the filter cannot use the index).
+     */
+    int estimate(ContactSnapshot snapshot) {
+        return snapshot.size();
+    }
+
+    /**
+     * Returns the longest assertion value of the indexed columns (the key of
+     * a fuzzy search), or null if the filter has no such value.
+     */
+    String fuzzyKey() {
+        return null;
+    }
+
+    /**
+     * Returns the normalized form of the filter (attribute aliases resolved,
+     * values in lowercase, AND/OR legs sorted). Equivalent filters have the
+     * same normalized form.
+     */
+    public abstract String toString();
+
+    // --- FILTER COMPILER ---
+
+    /**
+     * Filter of the "list all contacts" requests.
+     */
+    static final SearchFilter ALL = new Constant(true);
+
+    /**
+     * Compiles the decoded filter of a search request. A null filter matches
+     * every contact.
+     */
+    static final SearchFilter compile(Filter filter, boolean utf8) {
+        if (filter == null) {
+            return ALL;
+        }
+        if (filter instanceof AndFilter) {
+            return and(compileAll(((AndFilter) filter).getAndFilter(), utf8));
+        }
+        if (filter instanceof OrFilter) {
+            return or(compileAll(((OrFilter) filter).getOrFilter(), utf8));
+        }
+        if (filter instanceof NotFilter) {
+            return not(compile(((NotFilter) filter).getNotFilter(), utf8));
+        }
+        if (filter instanceof PresentFilter) {
+            return present(((PresentFilter) filter).getAttributeDescription());
+        }
+        if (filter instanceof SubstringFilter) {
+            SubstringFilter substring = (SubstringFilter) filter;
+            ArrayList list = substring.getAnySubstrings();
+            String[] any = new String[list == null ? 0 : list.size()];
+            for (int i = 0; i < any.length; i++) {
+                any[i] = decode(list.get(i), utf8);
+            }
+            return substring(substring.getType(), decode(substring.getInitialSubstrings(), utf8), any,
+                    decode(substring.getFinalSubstrings(), utf8));
+        }
+        if (filter instanceof AttributeValueAssertionFilter) {
+            AttributeValueAssertionFilter assertionFilter = (AttributeValueAssertionFilter) filter;
+            AttributeValueAssertion assertion = assertionFilter.getAssertion();
+            return assertion(assertionFilter.getFilterType(), assertion.getAttributeDesc(),
+                    decode(assertion.getAssertionValue(), utf8));
+        }
+
+        // Extensible match (unsupported)
+        return new Constant(false);
+    }
+
+    // --- FILTER NODES ---
+    static final SearchFilter and(SearchFilter[] filters) {
+        return new And(filters);
+    }
+
+    static final SearchFilter or(SearchFilter[] filters) {
+        return new Or(filters);
+    }
+
+    static final SearchFilter not(SearchFilter filter) {
+        return new Not(filter);
+    }
+
+    /**
+     * Compiles a presence filter ("attribute=*").
+     */
+    static final SearchFilter present(String attribute) {
+        int column = column(attribute);
+        if (column == OBJECT_CLASS) {
+            return ALL;
+        }
+        if (column == NAME_WORDS) {
+            column = ContactSnapshot.CN;
+        }
+        if (column < 0) {
+            return new Constant(false);
+        }
+        return new Present(column);
+    }
+
+    /**
+     * Compiles a substring filter of decoded values (any of them can be null
+     * if it is not given).
+     */
+    static final SearchFilter substring(String attribute, String initial, String[] any, String last) {
+        int column = column(attribute);
+        initial = fold(initial);
+        last = fold(last);
+        any = any.clone();
+        for (int i = 0; i < any.length; i++) {
+            any[i] = fold(any[i]);
+            if ("@".equals(any[i])) {
+
+                // All contacts requested
+                return ALL;
+            }
+        }
+        if (column == NAME_WORDS) {
+            return new Substring(ContactSnapshot.CN, initial, any, last, false, true);
+        }
+        if (column < 0) {
+            return new Constant(column == OBJECT_CLASS);
+        }
+        if (ContactSnapshot.isPhone(column) && isPhoneNumber(initial, any, last)) {
+
+            // Compare the digits of the phone numbers
+            for (int i = 0; i < any.length; i++) {
+                any[i] = ContactSnapshot.digits(any[i]);
+            }
+            return new Substring(column, initial == null ? null : ContactSnapshot.digits(initial), any,
+                    last == null ? null : ContactSnapshot.digits(last), true, false);
+        }
+        return new Substring(column, initial, any, last, false, false);
+    }
+
+    /**
+     * Compiles an attribute value assertion (equality, approximate or
+     * ordering filter) of a decoded value.
+     */
+    static final SearchFilter assertion(int type, String attribute, String value) {
+        int column = column(attribute);
+        value = fold(value);
+        if ("@".equals(value)) {
+
+            // All contacts requested
+            return ALL;
+        }
+        if (column == OBJECT_CLASS) {
+            if (type != LdapConstants.EQUALITY_MATCH_FILTER && type != LdapConstants.APPROX_MATCH_FILTER) {
+                return new Constant(false);
+            }
+            for (int i = 0; i < OBJECT_CLASSES.length; i++) {
+                if (OBJECT_CLASSES[i].equals(value)) {
+                    return ALL;
+                }
+            }
+            return new Constant(false);
+        }
+        boolean words = column == NAME_WORDS;
+        if (words) {
+            column = ContactSnapshot.CN;
+        }
+        if (column < 0 || value == null) {
+            return new Constant(false);
+        }
+        switch (type) {
+            case LdapConstants.EQUALITY_MATCH_FILTER:
+            case LdapConstants.APPROX_MATCH_FILTER:
+                if (ContactSnapshot.isPhone(column) && isPhoneNumber(value, new String[0], null)) {
+                    return new PhoneNumber(column, ContactSnapshot.digits(value));
+                }
+                return new Equality(column, value, words);
+            case LdapConstants.GREATER_OR_EQUAL_FILTER:
+                return new Ordering(column, value, true);
+            case LdapConstants.LESS_OR_EQUAL_FILTER:
+                return new Ordering(column, value, false);
+            default:
+                return new Constant(false);
+        }
+    }
+
+    private static final SearchFilter[] compileAll(ArrayList filters, boolean utf8) {
+        if (filters == null) {
+            return new SearchFilter[0];
+        }
+        SearchFilter[] nodes = new SearchFilter[filters.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = compile((Filter) filters.get(i), utf8);
+        }
+        return nodes;
+    }
+
+    private static final int column(String attribute) {
+        if (attribute == null) {
+            return -2;
+        }
+        String name = attribute.toLowerCase();
+        int i = name.indexOf(';');
+        if (i != -1) {
+
+            // Remove attribute options
+            name = name.substring(0, i);
+        }
+        Integer column = ATTRIBUTES.get(name.trim());
+        return column == null ? -2 : column.intValue();
+    }
+
+    /**
+     * Returns true if the (non-null) values contain only digits and the
+     * usual separators of phone numbers, at least one digit each.
+     */
+    private static final boolean isPhoneNumber(String initial, String[] any, String last) {
+        if (initial != null && !isPhoneNumber(initial)) {
+            return false;
+        }
+        for (int i = 0; i < any.length; i++) {
+            if (!isPhoneNumber(any[i])) {
+                return false;
+            }
+        }
+        return last == null || isPhoneNumber(last);
+    }
+
+    private static final boolean isPhoneNumber(String value) {
+        boolean digit = false;
+        char c;
+        for (int i = 0; i < value.length(); i++) {
+            c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digit = true;
+            } else if (" +-()./".indexOf(c) == -1) {
+                return false;
+            }
+        }
+        return digit;
+    }
+
+    private static final String decode(Object value, boolean utf8) {
+        if (value == null) {
+            return null;
+        }
+        String text;
+        if (value instanceof byte[]) {
+            try {
+                text = StringUtils.decodeToString((byte[]) value, StringUtils.UTF_8);
+            } catch (Exception ignored) {
+                return null;
+            }
+        } else {
+            text = value.toString();
+
+            // Decode UTF8 chars
+            try {
+                byte[] bytes = text.getBytes(PLATFORM_ENCODING);
+                text = StringUtils.decodeToString(bytes, StringUtils.UTF_8);
+                if (utf8) {
+                    bytes = text.getBytes(PLATFORM_ENCODING);
+                    text = StringUtils.decodeToString(bytes, StringUtils.UTF_8);
+                }
+            } catch (Exception ignored) {
+            }
+        }
+        return text;
+    }
+
+    private static final String fold(String value) {
+        return value == null ? null : ContactSnapshot.fold(value);
+    }
+
+    // --- CONNECTORS ---
+    private static final class And extends SearchFilter {
+
+        private final SearchFilter[] filters;
+
+        private And(SearchFilter[] filters) {
+            this.filters = filters;
+        }
+
+        final boolean matches(ContactSnapshot snapshot, int index) {
+            for (int i = 0; i < filters.length; i++) {
+                if (!filters[i].matches(snapshot, index)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        final int[] candidates(ContactSnapshot snapshot) {
+            SearchFilter best = null;
+            int min = snapshot.size();
+            for (int i = 0; i < filters.length; i++) {
+                int estimate = filters[i].estimate(snapshot);
+                if (estimate < min) {
+                    min = estimate;
+                    best = filters[i];
+                }
+            }
+            return best == null ? null : best.candidates(snapshot);
+        }
+
+        final int estimate(ContactSnapshot snapshot) {
+            int min = snapshot.size();
+            for (int i = 0; i < filters.length; i++) {
+                min = Math.min(min, filters[i].estimate(snapshot));
+            }
+            return min;
+        }
+
+        final String fuzzyKey() {
+            return longest(filters);
+        }
+
+        public final String toString() {
+            return join('&', filters);
+        }
+    }
+
+    private static final class Or extends SearchFilter {
+
+        private final SearchFilter[] filters;
+
+        private Or(SearchFilter[] filters) {
+            this.filters = filters;
+        }
+
+        final boolean matches(ContactSnapshot snapshot, int index) {
+            for (int i = 0; i < filters.length; i++) {
+                if (filters[i].matches(snapshot, index)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        final int[] candidates(ContactSnapshot snapshot) {
+            int[] result = new int[0];
+            for (int i = 0; i < filters.length; i++) {
+                int[] candidates = filters[i].candidates(snapshot);
+                if (candidates == null) {
+                    return null;
+                }
+                result = TrigramIndex.union(result, candidates);
+            }
+            return result;
+        }
+
+        final int estimate(ContactSnapshot snapshot) {
+            long sum = 0;
+            for (int i = 0; i < filters.length; i++) {
+                sum += filters[i].estimate(snapshot);
+            }
+            return (int) Math.min(sum, snapshot.size());
+        }
+
+        final String fuzzyKey() {
+            return longest(filters);
+        }
+
+        public final String toString() {
+            return join('|', filters);
+        }
+    }
+
+    private static final class Not extends SearchFilter {
+
+        private final SearchFilter filter;
+
+        private Not(SearchFilter filter) {
+            this.filter = filter;
+        }
+
+        final boolean matches(ContactSnapshot snapshot, int index) {
+            return !filter.matches(snapshot, index);
+        }
+
+        public final String toString() {
+            return "(!" + filter + ')';
+        }
+    }
+
+    private static final class Constant extends SearchFilter {
+
+        private final boolean value;
+
+        private Constant(boolean value) {
+            this.value = value;
+        }
+
+        final boolean matches(ContactSnapshot snapshot, int index) {
+            return value;
+        }
+
+        final int[] candidates(ContactSnapshot snapshot) {
+            return value ? null : new int[0];
+        }
+
+        final int estimate(ContactSnapshot snapshot) {
+            return value ? snapshot.size() : 0;
+        }
+
+        public final String toString() {
+            return value ? "(TRUE)" : "(FALSE)";
+        }
+    }
+
+    // --- ATTRIBUTE ASSERTIONS ---
+    private static final class Present extends SearchFilter {
+
+        private final int column;
+
+        private Present(int column) {
+            this.column = column;
+        }
+
+        final boolean matches(ContactSnapshot snapshot, int index) {
+            return !snapshot.value(column, index).isEmpty(index);
+        }
+
+        public final String toString() {
+            return "(" + column + "=*)";
+        }
+    }
+
+    private static final class Equality extends SearchFilter {
+
+        private final int column;
+        private final String value;
+        private final boolean words;
+
+        private Equality(int column, String value, boolean words) {
+            this.column = column;
+            this.value = value;
+            this.words = words;
+        }
+
+        final boolean matches(ContactSnapshot snapshot, int index) {
+            FoldedColumn folded = snapshot.value(column, index);
+            char[] text = folded.chars;
+            int start = folded.start(index);
+            int end = folded.end(index);
+            if (!words) {
+                return end - start == value.length() && startsWith(text, start, end, value);
+            }
+
+            // Whole words of the text
+            int length = value.length();
+            for (int position = start; position < end; position = nextWord(text, position, end)) {
+                if (startsWith(text, position, end, value)
+                        && (position + length == end || isSeparator(text[position + length]))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        final int[] candidates(ContactSnapshot snapshot) {
+            if (!ContactSnapshot.isIndexed(column)) {
+                return null;
+            }
+            return indexCandidates(snapshot, value, new String[] {value});
+        }
+
+        final int estimate(ContactSnapshot snapshot) {
+            if (!ContactSnapshot.isIndexed(column)) {
+                return snapshot.size();
+            }
+            return indexEstimate(snapshot, value, new String[] {value});
+        }
+
+        final String fuzzyKey() {
+            return ContactSnapshot.isIndexed(column) ? value : null;
+        }
+
+        public final String toString() {
+            return "(" + column + (words ? "w=" : "=") + escape(value) + ')';
+        }
+    }
+
+    private static final class PhoneNumber extends SearchFilter {
+
+        private final int column;
+        private final String number;
+
+        private PhoneNumber(int column, String number) {
+            this.column = column;
+            this.number = number;
+        }
+
+        /**
+         * Equal digits, or one number ends with the other (with or without
+         * the country or area code) if both are long enough.
+         */
+        final boolean matches(ContactSnapshot snapshot, int index) {
+            FoldedColumn digits = snapshot.number(column, index);
+            char[] text = digits.chars;
+            int start = digits.start(index);
+            int end = digits.end(index);
+            int length = end - start;
+            if (length == number.length()) {
+                return startsWith(text, start, end, number);
+            }
+            if (length < MIN_PHONE_SUFFIX || number.length() < MIN_PHONE_SUFFIX) {
+                return false;
+            }
+            if (length > number.length()) {
+                return startsWith(text, end - number.length(), end, number);
+            }
+            return regionMatches(text, start, number, number.length() - length, length);
+        }
+
+        final int[] candidates(ContactSnapshot snapshot) {
+            return snapshot.phones().candidates(key());
+        }
+
+        final int estimate(ContactSnapshot snapshot) {
+            return snapshot.phones().estimate(key());
+        }
+
+        private final String key() {
+            int length = number.length();
+            if (length > MIN_PHONE_SUFFIX) {
+                return ContactSnapshot.reverse(number.substring(length - MIN_PHONE_SUFFIX));
+            }
+            return ContactSnapshot.reverse(number);
+        }
+
+        public final String toString() {
+            return "(" + column + "#=" + number + ')';
+        }
+    }
+
+    private static final class Ordering extends SearchFilter {
+
+        private final int column;
+        private final String value;
+        private final boolean greater;
+
+        private Ordering(int column, String value, boolean greater) {
+            this.column = column;
+            this.value = value;
+            this.greater = greater;
+        }
+
+        final boolean matches(ContactSnapshot snapshot, int index) {
+            FoldedColumn folded = snapshot.value(column, index);
+            if (folded.isEmpty(index)) {
+                return false;
+            }
+            int result = compare(folded.chars, folded.start(index), folded.end(index), value);
+            return greater ? result >= 0 : result <= 0;
+        }
+
+        public final String toString() {
+            return "(" + column + (greater ? ">=" : "<=") + escape(value) + ')';
+        }
+    }
+
+    private static final class Substring extends SearchFilter {
+
+        private final int column;
+        private final String initial;
+        private final String[] any;
+        private final String last;
+        private final boolean phone;
+        private final boolean words;
+
+        private Substring(int column, String initial, String[] any, String last, boolean phone,
+                boolean words) {
+            this.column = column;
+            this.initial = initial;
+            this.any = any;
+            this.last = last;
+            this.phone = phone;
+            this.words = words;
+        }
+
+        final boolean matches(ContactSnapshot snapshot, int index) {
+            FoldedColumn folded = phone ? snapshot.number(column, index) : snapshot.value(column, index);
+            char[] text = folded.chars;
+            int start = folded.start(index);
+            int end = folded.end(index);
+            if (!words) {
+                return matches(text, start, end);
+            }
+
+            // Runs of whole words of the text
+            for (int position = start; position < end; position = nextWord(text, position, end)) {
+                for (int i = position + 1; i <= end; i++) {
+                    if ((i == end || isSeparator(text[i])) && matches(text, position, i)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Matches the characters of the text between start and end.
+         */
+        private final boolean matches(char[] text, int start, int end) {
+            int position = start;
+            if (initial != null) {
+                if (!startsWith(text, position, end, initial)) {
+                    return false;
+                }
+                position += initial.length();
+            }
+            for (int i = 0; i < any.length; i++) {
+                int found = indexOf(text, position, end, any[i]);
+                if (found == -1) {
+                    return false;
+                }
+                position = found + any[i].length();
+            }
+            if (last != null) {
+                return end - last.length() >= position && startsWith(text, end - last.length(), end, last);
+            }
+            return true;
+        }
+
+        final int[] candidates(ContactSnapshot snapshot) {
+            if (phone && last != null) {
+
+                // Phone number suffix
+                return snapshot.phones().candidates(ContactSnapshot.reverse(last));
+            }
+            if (!ContactSnapshot.isIndexed(column)) {
+                return null;
+            }
+            return indexCandidates(snapshot, initial, keys());
+        }
+
+        final int estimate(ContactSnapshot snapshot) {
+            if (phone && last != null) {
+                return snapshot.phones().estimate(ContactSnapshot.reverse(last));
+            }
+            if (!ContactSnapshot.isIndexed(column)) {
+                return snapshot.size();
+            }
+            return indexEstimate(snapshot, initial, keys());
+        }
+
+        final String fuzzyKey() {
+            if (!ContactSnapshot.isIndexed(column)) {
+                return null;
+            }
+            String[] keys = keys();
+            String key = null;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null && (key == null || keys[i].length() > key.length())) {
+                    key = keys[i];
+                }
+            }
+            return key;
+        }
+
+        private final String[] keys() {
+            String[] keys = new String[any.length + 2];
+            keys[0] = initial;
+            System.arraycopy(any, 0, keys, 1, any.length);
+            keys[keys.length - 1] = last;
+            return keys;
+        }
+
+        public final String toString() {
+            StringBuffer buffer = new StringBuffer();
+            buffer.append('(').append(column).append(phone ? "#=" : words ? "w=" : "=");
+            if (initial != null) {
+                buffer.append(escape(initial));
+            }
+            buffer.append('*');
+            for (int i = 0; i < any.length; i++) {
+                buffer.append(escape(any[i])).append('*');
+            }
+            if (last != null) {
+                buffer.append(escape(last));
+            }
+            return buffer.append(')').toString();
+        }
+    }
+
+    // --- WORDS ---
+    private static final boolean isSeparator(char c) {
+        return c == ',' || Character.isWhitespace(c);
+    }
+
+    /**
+     * Returns the start of the next word after the given position (or the
+     * end of the text).
+     */
+    private static final int nextWord(char[] text, int position, int end) {
+        int i = position;
+        while (i < end && !isSeparator(text[i])) {
+            i++;
+        }
+        while (i < end && isSeparator(text[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    // --- CHARACTER RANGES ---
+
+    /**
+     * Returns true if the text (ending at end) contains the value at the
+     * given position.
+     */
+    private static final boolean startsWith(char[] text, int position, int end, String value) {
+        return end - position >= value.length() && regionMatches(text, position, value, 0, value.length());
+    }
+
+    private static final boolean regionMatches(char[] text, int position, String value, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (text[position + i] != value.charAt(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the first position of the value in the text between from and
+     * end, or -1 if the value is not found.
+     */
+    private static final int indexOf(char[] text, int from, int end, String value) {
+        int last = end - value.length();
+        for (int i = from; i <= last; i++) {
+            if (regionMatches(text, i, value, 0, value.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the text between start and end with the value (as
+     * String.compareTo does).
+     */
+    private static final int compare(char[] text, int start, int end, String value) {
+        int length = Math.min(end - start, value.length());
+        for (int i = 0; i < length; i++) {
+            int difference = text[start + i] - value.charAt(i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return end - start - value.length();
+    }
+
+    // --- INDEX PLANNER ---
+    private static final int FEW_CANDIDATES = 64;
+
+    /**
+     * Returns the candidates of a value starting with the prefix and
+     * containing all keys (null elements are ignored). The index lookups are
+     * intersected from the most selective one, until only a few candidates
+     * remain.
+     */
+    private static final int[] indexCandidates(ContactSnapshot snapshot, String prefix, String[] keys) {
+        int[] estimates = new int[keys.length + 1];
+        estimates[0] = prefix == null ? -1 : snapshot.words().estimate(prefix);
+        for (int i = 0; i < keys.length; i++) {
+            estimates[i + 1] = keys[i] == null ? -1 : snapshot.names().estimate(keys[i]);
+        }
+        int[] result = null;
+        for (;;) {
+            int best = -1;
+            for (int i = 0; i < estimates.length; i++) {
+                if (estimates[i] >= 0 && (best == -1 || estimates[i] < estimates[best])) {
+                    best = i;
+                }
+            }
+            if (best == -1) {
+                return result;
+            }
+            estimates[best] = -1;
+            int[] candidates;
+            if (best == 0) {
+                candidates = snapshot.words().candidates(prefix);
+            } else {
+                candidates = snapshot.names().candidates(keys[best - 1]);
+            }
+            result = result == null ? candidates : TrigramIndex.intersect(result, candidates);
+            if (result.length <= FEW_CANDIDATES) {
+                return result;
+            }
+        }
+    }
+
+    private static final int indexEstimate(ContactSnapshot snapshot, String prefix, String[] keys) {
+        int min = snapshot.size();
+        if (prefix != null) {
+            int estimate = snapshot.words().estimate(prefix);
+            if (estimate >= 0) {
+                min = Math.min(min, estimate);
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                int estimate = snapshot.names().estimate(keys[i]);
+                if (estimate >= 0) {
+                    min = Math.min(min, estimate);
+                }
+            }
+        }
+        return min;
+    }
+
+    // --- NORMALIZED FORM ---
+    private static final String longest(SearchFilter[] filters) {
+        String key = null;
+        for (int i = 0; i < filters.length; i++) {
+            String candidate = filters[i].fuzzyKey();
+            if (candidate != null && (key == null || candidate.length() > key.length())) {
+                key = candidate;
+            }
+        }
+        return key;
+    }
+
+    private static final String join(char operator, SearchFilter[] filters) {
+        String[] legs = new String[filters.length];
+        for (int i = 0; i < legs.length; i++) {
+            legs[i] = filters[i].toString();
+        }
+        Arrays.sort(legs);
+        StringBuffer buffer = new StringBuffer();
+        buffer.append('(').append(operator);
+        for (int i = 0; i < legs.length; i++) {
+            buffer.append(legs[i]);
+        }
+        return buffer.append(')').toString();
+    }
+
+    private static final String escape(String value) {
+        StringBuffer buffer = new StringBuffer(value.length() + 8);
+        char c;
+        for (int i = 0; i < value.length(); i++) {
+            c = value.charAt(i);
+            if (c == '*' || c == '(' || c == ')' || c == '\\') {
+                buffer.append('\\');
+            }
+            buffer.append(c);
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,125 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Search response. The result entries are encoded once per contact list, so
+ * sending an entry only copies its selected attributes into a message
+ * envelope while the reactor drains the connection.
+ * Sends the hits in the [from, to) range (one page of a paged search) and
+ * stops when the time limit expires.
+ */
+final class SearchResponse extends LDAPResponse {
+
+    // --- VARIABLES ---
+    private final EncodedEntries entries;
+    private final int[] hits;
+    private final int to;
+    private final boolean utf8;
+    private final int attributes;
+    private final byte[] controls;
+    private final long deadline;
+    private int resultCode;
+    private int next;
+    private boolean done;
+
+    // --- CONSTRUCTOR ---
+
+    /**
+     * Creates a response for hits[from..to) (indexes of the entries) with
+     * the selected attributes (see {@link EncodedEntries#select(String[])}).
+     * The controls (if not null) are the encoded response controls of the
+     * search done message; a non-zero deadline is the time limit of the
+     * request.
+     */
+    SearchResponse(int messageId, EncodedEntries entries, int[] hits, int from, int to, boolean utf8,
+            int attributes, int resultCode, byte[] controls, long deadline) {
+        super(messageId);
+        this.entries = entries;
+        this.hits = hits;
+        this.next = from;
+        this.to = to;
+        this.utf8 = utf8;
+        this.attributes = attributes;
+        this.resultCode = resultCode;
+        this.controls = controls;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns the next entry as a separate message (only used for entries
+     * larger than an output buffer).
+     */
+    final ByteBuffer nextMessage() {
+        int index = nextEntry();
+        if (index == -1) {
+            return null;
+        }
+        next++;
+        ByteBuffer message = ByteBuffer.allocate(entries.messageSize(index, utf8, attributes, messageId));
+        entries.writeMessage(message, index, utf8, attributes, messageId);
+        message.flip();
+        return message;
+    }
+
+    private final int nextEntry() {
+        while (next < to) {
+            if (deadline != 0 && System.currentTimeMillis() > deadline) {
+                resultCode = ResultResponse.TIME_LIMIT_EXCEEDED;
+                next = to;
+                break;
+            }
+            int index = hits[next];
+            if (entries.isEncoded(index, utf8)) {
+                return index;
+            }
+            next++;
+        }
+        return -1;
+    }
+
+    final boolean fill(ByteBuffer buffer) throws Exception {
+        if (!drain(buffer)) {
+            return false;
+        }
+        int index;
+        while ((index = nextEntry()) != -1) {
+            if (entries.messageSize(index, utf8, attributes, messageId) > buffer.remaining()) {
+                if (buffer.position() != 0) {
+                    return false;
+                }
+
+                // Entry is larger than the buffer, copy it in parts
+                hold(nextMessage());
+                drain(buffer);
+                return false;
+            }
+            entries.writeMessage(buffer, index, utf8, attributes, messageId);
+            next++;
+        }
+        if (!done) {
+
+            // Search done
+            byte[] message = ResultResponse.toBytes(null);
+            if (buffer.remaining() < ResultResponse.size(messageId, resultCode, message, controls)) {
+                return false;
+            }
+            ResultResponse.write(buffer, messageId, ResultResponse.SEARCH_RESULT_DONE, resultCode, message,
+                    controls);
+            done = true;
+        }
+        return true;
+    }
+}
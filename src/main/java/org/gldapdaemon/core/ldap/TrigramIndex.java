@@ -0,0 +1,173 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Trigram inverted index of some folded columns of a contact snapshot. A
+ * substring query intersects the posting lists (sorted arrays of contact
+ * indexes) of its trigrams; only the remaining candidates have to be
+ * compared with the key.
+ */
+final class TrigramIndex {
+
+    // --- CONSTANTS ---
+    private static final int[] EMPTY = new int[0];
+    private static final Comparator<int[]> BY_LENGTH = new Comparator<int[]>() {
+
+        public final int compare(int[] a, int[] b) {
+            return a.length - b.length;
+        }
+    };
+    // --- VARIABLES ---
+    private final HashMap<Long, int[]> postings;
+
+    // --- CONSTRUCTOR ---
+
+    /**
+     * Creates the index of the given folded columns of a snapshot.
+     */
+    TrigramIndex(ContactSnapshot snapshot, int[] columns) {
+        HashMap<Long, PostingList> lists = new HashMap<Long, PostingList>();
+        int count = snapshot.size();
+        for (int n = 0; n < count; n++) {
+            for (int c = 0; c < columns.length; c++) {
+                FoldedColumn column = snapshot.value(columns[c], n);
+                int end = column.end(n);
+                for (int i = column.start(n); i + 3 <= end; i++) {
+                    Long trigram = new Long(trigram(column.chars, i));
+                    PostingList posting = lists.get(trigram);
+                    if (posting == null) {
+                        posting = new PostingList();
+                        lists.put(trigram, posting);
+                    }
+                    posting.add(n);
+                }
+            }
+        }
+
+        // Trim posting lists
+        postings = new HashMap<Long, int[]>(lists.size() * 4 / 3 + 1);
+        Iterator<Map.Entry<Long, PostingList>> entries = lists.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Long, PostingList> entry = entries.next();
+            postings.put(entry.getKey(), entry.getValue().toArray());
+        }
+    }
+
+    private static final long trigram(char[] text, int offset) {
+        return ((long) text[offset] << 32) | ((long) text[offset + 1] << 16) | text[offset + 2];
+    }
+
+    private static final long trigram(String text, int offset) {
+        return ((long) text.charAt(offset) << 32) | ((long) text.charAt(offset + 1) << 16)
+                | text.charAt(offset + 2);
+    }
+
+    // --- QUERY ---
+
+    /**
+     * Returns the length of the shortest posting list of the key (an upper
+     * bound of the matches), or -1 if the key is too short to use the index.
+     */
+    final int estimate(String key) {
+        int count = key.length() - 2;
+        if (count < 1) {
+            return -1;
+        }
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            int[] list = postings.get(new Long(trigram(key, i)));
+            if (list == null) {
+                return 0;
+            }
+            min = Math.min(min, list.length);
+        }
+        return min;
+    }
+
+    /**
+     * Returns the sorted indexes of the contacts that may contain the
+     * (lowercase) key, or null if the key is too short to use the index.
+     */
+    final int[] candidates(String key) {
+        int count = key.length() - 2;
+        if (count < 1) {
+            return null;
+        }
+        int[][] lists = new int[count][];
+        for (int i = 0; i < count; i++) {
+            int[] list = postings.get(new Long(trigram(key, i)));
+            if (list == null) {
+                return EMPTY;
+            }
+            lists[i] = list;
+        }
+
+        // Intersect, starting with the shortest list
+        Arrays.sort(lists, BY_LENGTH);
+        int[] result = lists[0];
+        for (int i = 1; i < count && result.length != 0; i++) {
+            if (lists[i] != lists[i - 1]) {
+                result = intersect(result, lists[i]);
+            }
+        }
+        return result;
+    }
+
+    // --- POSTING LIST OPERATIONS ---
+    static final int[] intersect(int[] small, int[] large) {
+        int[] result = new int[small.length];
+        int size = 0;
+        int from = 0;
+        for (int i = 0; i < small.length && from < large.length; i++) {
+            int found = Arrays.binarySearch(large, from, large.length, small[i]);
+            if (found >= 0) {
+                result[size++] = small[i];
+                from = found + 1;
+            } else {
+                from = -found - 1;
+            }
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    static final int[] union(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                result[size++] = a[i++];
+            } else if (a[i] > b[j]) {
+                result[size++] = b[j++];
+            } else {
+                result[size++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length) {
+            result[size++] = a[i++];
+        }
+        while (j < b.length) {
+            result[size++] = b[j++];
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+}
@@ -0,0 +1,77 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Framing tests of the LDAP message reader (partial headers and long form
+ * lengths).
+ */
+public class BerCodecTest extends TestCase {
+
+    // --- TESTS ---
+    public void testShortForm() throws Exception {
+        byte[] bytes = {0x30, 0x05, 0, 0, 0, 0, 0};
+        assertEquals(-1, BerCodec.frameLength(bytes, 0, 0));
+        assertEquals(-1, BerCodec.frameLength(bytes, 0, 1));
+        assertEquals(7, BerCodec.frameLength(bytes, 0, 2));
+        assertEquals(7, BerCodec.frameLength(bytes, 0, bytes.length));
+    }
+
+    public void testLongForm() throws Exception {
+        byte[] bytes = new byte[8];
+        bytes[2] = 0x30;
+        bytes[3] = (byte) 0x82;
+        bytes[4] = 0x01;
+        bytes[5] = 0x28;
+
+        // Header at an offset, with a partial length
+        assertEquals(-1, BerCodec.frameLength(bytes, 2, 2));
+        assertEquals(-1, BerCodec.frameLength(bytes, 2, 3));
+        assertEquals(4 + 0x128, BerCodec.frameLength(bytes, 2, 4));
+        assertEquals(4 + 0x128, BerCodec.frameLength(bytes, 2, 6));
+    }
+
+    public void testFourByteLength() throws Exception {
+        byte[] bytes = {0x30, (byte) 0x84, 0x01, 0x00, 0x00, 0x00};
+        assertEquals(-1, BerCodec.frameLength(bytes, 0, 5));
+        assertEquals(6 + 0x01000000, BerCodec.frameLength(bytes, 0, 6));
+    }
+
+    public void testInvalidTag() {
+        assertInvalid(new byte[] {0x04, 0x01, 0x00});
+    }
+
+    public void testInvalidLength() {
+
+        // Indefinite length, and more than four length bytes
+        assertInvalid(new byte[] {0x30, (byte) 0x80, 0x00, 0x00});
+        assertInvalid(new byte[] {0x30, (byte) 0x85, 0x00, 0x00, 0x00, 0x00, 0x01});
+    }
+
+    public void testTooLong() {
+        assertInvalid(new byte[] {0x30, (byte) 0x84, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+    }
+
+    // --- HELPERS ---
+    private static final void assertInvalid(byte[] bytes) {
+        try {
+            BerCodec.frameLength(bytes, 0, bytes.length);
+            fail("Invalid header accepted!");
+        } catch (IOException expected) {
+        }
+    }
+}
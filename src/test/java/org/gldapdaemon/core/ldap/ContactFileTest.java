@@ -0,0 +1,143 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trip, corruption and truncation tests of the mapped contact file.
+ */
+public class ContactFileTest extends TestCase {
+
+    // --- CONSTANTS ---
+    private static final String[] ACCOUNTS = {"first@example.com", "second"};
+    private static final int[] BOUNDS = {0, 200, 500};
+    // --- VARIABLES ---
+    private File directory;
+
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("contacts", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        directory.delete();
+    }
+
+    // --- TESTS ---
+    public void testRoundTrip() throws Exception {
+        ContactTable table = new ContactTable(ContactStreamTest.contacts());
+        ContactFile.write(directory, table, ACCOUNTS, BOUNDS);
+        ContactFile file = ContactFile.open(newest());
+        ContactStreamTest.assertSameContacts(table, file.contacts);
+        assertEquals(ACCOUNTS.length, file.accounts.length);
+        for (int i = 0; i < ACCOUNTS.length; i++) {
+            assertEquals(ACCOUNTS[i], file.accounts[i]);
+        }
+        for (int i = 0; i < BOUNDS.length; i++) {
+            assertEquals(BOUNDS[i], file.bounds[i]);
+        }
+    }
+
+    public void testEmptyList() throws Exception {
+        ContactFile.write(directory, ContactTable.EMPTY, new String[0], new int[] {0});
+        ContactFile file = ContactFile.open(newest());
+        assertEquals(0, file.contacts.size());
+        assertEquals(0, file.accounts.length);
+    }
+
+    public void testNewFilePerWrite() throws Exception {
+        ContactFile.write(directory, new ContactTable(ContactStreamTest.contacts()), ACCOUNTS, BOUNDS);
+        File first = newest();
+        ContactFile.write(directory, ContactTable.EMPTY, new String[0], new int[] {0});
+        File second = newest();
+        assertFalse(first.equals(second));
+        assertFalse(first.exists());
+        assertEquals(1, ContactFile.list(directory).length);
+        assertEquals(0, ContactFile.open(second).contacts.size());
+    }
+
+    public void testInvalidHeader() throws Exception {
+        ContactFile.write(directory, new ContactTable(ContactStreamTest.contacts()), ACCOUNTS, BOUNDS);
+        overwrite(0, 0x12345678);
+        assertInvalid();
+    }
+
+    public void testInvalidCounts() throws Exception {
+        ContactFile.write(directory, new ContactTable(ContactStreamTest.contacts()), ACCOUNTS, BOUNDS);
+
+        // Accounts, then contacts beyond the size of the file
+        overwrite(16, Integer.MAX_VALUE - 1);
+        assertInvalid();
+        overwrite(16, ACCOUNTS.length);
+        overwrite(8, Integer.MAX_VALUE - 1);
+        assertInvalid();
+    }
+
+    public void testInvalidOffsets() throws Exception {
+        ContactFile.write(directory, new ContactTable(ContactStreamTest.contacts()), ACCOUNTS, BOUNDS);
+
+        // First offset of the names (after the header and the partitions)
+        int position = 20 + 4 * (ACCOUNTS.length + 1);
+        for (int i = 0; i < ACCOUNTS.length; i++) {
+            position += 2 + ContactFile.utf8Length(ACCOUNTS[i]);
+        }
+        overwrite(position, Integer.MAX_VALUE);
+        assertInvalid();
+    }
+
+    public void testTruncation() throws Exception {
+        ContactFile.write(directory, new ContactTable(ContactStreamTest.contacts()), ACCOUNTS, BOUNDS);
+        RandomAccessFile raf = new RandomAccessFile(newest(), "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+        assertInvalid();
+    }
+
+    // --- HELPERS ---
+    private final File newest() {
+        File[] files = ContactFile.list(directory);
+        assertTrue(files.length != 0);
+        return files[0];
+    }
+
+    private final void overwrite(int position, int value) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(newest(), "rw");
+        try {
+            raf.seek(position);
+            raf.writeInt(value);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private final void assertInvalid() {
+        try {
+            ContactFile.open(newest());
+            fail("Invalid file accepted!");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,146 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.gldapdaemon.core.GmailContact;
+
+/**
+ * Round trip, corruption and truncation tests of the sequential contact
+ * list file.
+ */
+public class ContactStreamTest extends TestCase {
+
+    // --- VARIABLES ---
+    private File file;
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("contacts", ".bin");
+    }
+
+    protected void tearDown() throws Exception {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    // --- TESTS ---
+    public void testRoundTrip() throws Exception {
+        ContactTable table = new ContactTable(contacts());
+        ContactStream.write(file, table);
+        assertSameContacts(table, new ContactTable(ContactStream.read(file)));
+    }
+
+    public void testEmptyList() throws Exception {
+        ContactStream.write(file, ContactTable.EMPTY);
+        assertEquals(0, ContactStream.read(file).size());
+    }
+
+    public void testReplace() throws Exception {
+        ContactStream.write(file, new ContactTable(contacts()));
+        ContactStream.write(file, ContactTable.EMPTY);
+        assertEquals(0, ContactStream.read(file).size());
+    }
+
+    public void testCorruption() throws Exception {
+        ContactStream.write(file, new ContactTable(contacts()));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(20);
+            int b = raf.read();
+            raf.seek(20);
+            raf.write(b ^ 0x01);
+        } finally {
+            raf.close();
+        }
+        assertInvalid();
+    }
+
+    public void testTruncation() throws Exception {
+        ContactStream.write(file, new ContactTable(contacts()));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+        assertInvalid();
+    }
+
+    public void testInvalidHeader() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.writeInt(0x12345678);
+            raf.writeInt(1);
+        } finally {
+            raf.close();
+        }
+        assertInvalid();
+    }
+
+    // --- HELPERS ---
+    private final void assertInvalid() {
+        try {
+            ContactStream.read(file);
+            fail("Invalid file accepted!");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Contacts with empty and missing values, non-ASCII characters (a
+     * surrogate pair) and a value larger than the buffer of the stream.
+     */
+    static final List<GmailContact> contacts() {
+        StringBuffer large = new StringBuffer();
+        while (large.length() < 70000) {
+            large.append("\u00c1rv\u00edzt\u0171r\u0151 ");
+        }
+        ArrayList<GmailContact> list = new ArrayList<GmailContact>();
+        for (int i = 0; i < 500; i++) {
+            GmailContact contact = new GmailContact();
+            contact.name = "Contact " + i;
+            contact.email = "contact" + i + "@example.com";
+            contact.notes = i == 7 ? large.toString() : null;
+            contact.description = "";
+            contact.mail = i % 3 == 0 ? "second" + i + "@example.com" : "";
+            contact.im = "";
+            contact.phone = "+1 (555) 010-" + (1000 + i);
+            contact.mobile = i % 2 == 0 ? "\u65e5\u672c\u8a9e" : "";
+            contact.pager = "";
+            contact.fax = "";
+            contact.company = i % 4 == 0 ? "Acme" : "\ud83d\ude00 Inc.";
+            contact.title = "Engineer";
+            contact.other = "";
+            contact.address = "Street " + i;
+            list.add(contact);
+        }
+        return list;
+    }
+
+    static final void assertSameContacts(ContactTable expected, ContactTable actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            for (int field = 0; field < ContactTable.FIELDS; field++) {
+                assertEquals(expected.get(i, field), actual.get(i, field));
+                assertEquals(expected.isEmpty(i, field), actual.isEmpty(i, field));
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Attribute projection tests of the pre-encoded search entries (attribute
+ * list resolution, message sizes and the selected attributes of the
+ * written messages).
+ */
+public class EncodedEntriesTest extends TestCase {
+
+    // --- CONSTANTS ---
+    private static final String[][] CONTACTS = {
+        {"John Smith", "john.smith@example.com", "Acme", "+1 (555) 010-1000"},
+        {"", "sales@example.com", "Smith & Sons", ""}
+    };
+
+    // --- VARIABLES ---
+    private EncodedEntries entries;
+
+    protected void setUp() throws Exception {
+        entries = FuzzySearchTest.snapshot(CONTACTS).entries;
+    }
+
+    // --- TESTS ---
+    public void testSelect() {
+        assertEquals(EncodedEntries.ALL_ATTRIBUTES, EncodedEntries.select(null));
+        assertEquals(EncodedEntries.ALL_ATTRIBUTES, EncodedEntries.select(new String[0]));
+        assertEquals(EncodedEntries.ALL_ATTRIBUTES, EncodedEntries.select(new String[] {"cn", "*"}));
+        assertEquals(EncodedEntries.NO_ATTRIBUTES, EncodedEntries.select(new String[] {"1.1"}));
+        assertEquals(EncodedEntries.NO_ATTRIBUTES, EncodedEntries.select(new String[] {"+"}));
+        assertEquals(EncodedEntries.NO_ATTRIBUTES, EncodedEntries.select(new String[] {"unknown"}));
+        assertEquals(EncodedEntries.select(new String[] {"cn"}),
+                EncodedEntries.select(new String[] {"commonName;lang-en"}));
+        assertEquals(EncodedEntries.select(new String[] {"o"}),
+                EncodedEntries.select(new String[] {" organizationName "}));
+        assertEquals(EncodedEntries.select(new String[] {"MAIL"}), EncodedEntries.select(new String[] {"mail"}));
+    }
+
+    public void testAllAttributes() throws Exception {
+        assertEquals("cn mail telephonenumber homePhone company o",
+                types(write(0, EncodedEntries.ALL_ATTRIBUTES, 5)));
+        assertEquals("cn mail company o", types(write(1, EncodedEntries.ALL_ATTRIBUTES, 300)));
+    }
+
+    public void testSelectedAttributes() throws Exception {
+        int mask = EncodedEntries.select(new String[] {"mail", "title", "o"});
+        assertEquals("mail o", types(write(0, mask, 7)));
+        assertEquals("", types(write(0, EncodedEntries.NO_ATTRIBUTES, 70000)));
+    }
+
+    public void testDistinguishedName() throws Exception {
+
+        // The company is the name of a contact without a name (escaped)
+        ByteBuffer message = write(1, EncodedEntries.NO_ATTRIBUTES, 1);
+        assertEquals("CN=Smith & Sons", dn(message));
+        assertEquals("CN=John Smith", dn(write(0, EncodedEntries.ALL_ATTRIBUTES, 1)));
+    }
+
+    // --- HELPERS ---
+
+    /**
+     * Writes a SearchResultEntry message, checks its size and returns the
+     * message.
+     */
+    private final ByteBuffer write(int index, int mask, int messageId) throws Exception {
+        assertTrue(entries.isEncoded(index, false));
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        entries.writeMessage(buffer, index, false, mask, messageId);
+        assertEquals(entries.messageSize(index, false, mask, messageId), buffer.position());
+        buffer.flip();
+        assertEquals(buffer.remaining(), BerCodec.frameLength(buffer.array(), 0, buffer.remaining()));
+        return buffer;
+    }
+
+    private static final String dn(ByteBuffer message) throws Exception {
+        enter(message, 0x30);
+        skip(message);
+        enter(message, 0x64);
+        return new String(value(message), "UTF-8");
+    }
+
+    /**
+     * Returns the attribute types of a message, separated by spaces.
+     */
+    private static final String types(ByteBuffer message) throws Exception {
+        enter(message, 0x30);
+        skip(message);
+        int end = enter(message, 0x64);
+        skip(message);
+        end = enter(message, 0x30);
+        StringBuffer types = new StringBuffer();
+        while (message.position() < end) {
+            int next = enter(message, 0x30);
+            if (types.length() != 0) {
+                types.append(' ');
+            }
+            types.append(new String(value(message), "UTF-8"));
+            message.position(next);
+        }
+        assertEquals(end, message.limit());
+        return types.toString();
+    }
+
+    /**
+     * Reads the header of a constructed element, returns the end of the
+     * element.
+     */
+    private static final int enter(ByteBuffer message, int tag) {
+        assertEquals(tag, message.get() & 0xff);
+        int length = length(message);
+        return message.position() + length;
+    }
+
+    private static final void skip(ByteBuffer message) {
+        message.get();
+        int length = length(message);
+        message.position(message.position() + length);
+    }
+
+    private static final byte[] value(ByteBuffer message) {
+        assertEquals(0x04, message.get());
+        byte[] bytes = new byte[length(message)];
+        message.get(bytes);
+        return bytes;
+    }
+
+    private static final int length(ByteBuffer message) {
+        int length = message.get() & 0xff;
+        if (length < 0x80) {
+            return length;
+        }
+        int count = length & 0x7f;
+        length = 0;
+        for (int i = 0; i < count; i++) {
+            length = length << 8 | message.get() & 0xff;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,81 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Folding tests of the snapshot columns (character array, dictionary and
+ * mapped fields, shared arrays and phone number digits).
+ */
+public class FoldedColumnTest extends TestCase {
+
+    // --- TESTS ---
+    public void testTextColumn() {
+        ContactTable table = new ContactTable(ContactStreamTest.contacts());
+        FoldedColumn names = FoldedColumn.fold(table, ContactTable.NAME);
+        assertEquals("contact 0", names.get(0));
+        assertEquals("contact 499", names.get(499));
+    }
+
+    public void testSharedColumn() {
+        ContactTable table = new ContactTable(ContactStreamTest.contacts());
+        FoldedColumn emails = FoldedColumn.fold(table, ContactTable.EMAIL);
+        assertSame(table.text(ContactTable.EMAIL), emails.chars);
+        assertEquals("contact7@example.com", emails.get(7));
+    }
+
+    public void testDictionaryColumn() {
+        ContactTable table = new ContactTable(ContactStreamTest.contacts());
+        assertTrue(table.dictionary(ContactTable.MOBILE) != null);
+        FoldedColumn mobiles = FoldedColumn.fold(table, ContactTable.MOBILE);
+        assertEquals("\u65e5\u672c\u8a9e", mobiles.get(0));
+        assertTrue(mobiles.isEmpty(1));
+        assertEquals(mobiles.start(0), mobiles.start(2));
+        FoldedColumn companies = FoldedColumn.fold(table, ContactTable.COMPANY);
+        assertEquals("acme", companies.get(0));
+    }
+
+    public void testMappedColumn() throws Exception {
+        File directory = File.createTempFile("contacts", "");
+        directory.delete();
+        directory.mkdir();
+        try {
+            ContactFile.write(directory, new ContactTable(ContactStreamTest.contacts()), new String[0],
+                    new int[] {0});
+            ContactTable table = ContactFile.open(ContactFile.list(directory)[0]).contacts;
+            FoldedColumn names = FoldedColumn.fold(table, ContactTable.NAME);
+            assertEquals("contact 12", names.get(12));
+            FoldedColumn notes = FoldedColumn.fold(table, ContactTable.NOTES);
+            assertEquals(ContactSnapshot.fold(table.get(7, ContactTable.NOTES)), notes.get(7));
+            assertTrue(notes.isEmpty(8));
+        } finally {
+            File[] files = directory.listFiles();
+            for (int i = 0; i < files.length; i++) {
+                files[i].delete();
+            }
+            directory.delete();
+        }
+    }
+
+    public void testDigits() {
+        ContactTable table = new ContactTable(ContactStreamTest.contacts());
+        FoldedColumn phones = FoldedColumn.digits(FoldedColumn.fold(table, ContactTable.PHONE));
+        assertEquals("15550101003", phones.get(3));
+        FoldedColumn mobiles = FoldedColumn.digits(FoldedColumn.fold(table, ContactTable.MOBILE));
+        assertTrue(mobiles.isEmpty(0));
+    }
+}
@@ -0,0 +1,104 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.gldapdaemon.core.GmailContact;
+
+/**
+ * Ranking tests of the approximate search (mistyped words, several words,
+ * account ranges and the size of the result).
+ */
+public class FuzzySearchTest extends TestCase {
+
+    // --- CONSTANTS ---
+    private static final String[][] CONTACTS = {
+        {"John Smith", "john.smith@example.com", "Acme", "+1 (555) 010-1000"},
+        {"Jon Smyth", "jon@example.com", "", "+1 (555) 010-2000"},
+        {"Jane Doe", "jane.doe@example.com", "Acme", ""},
+        {"", "sales@example.com", "Smith & Sons", "555-3000"},
+        {"J\u00f3zsef Sz\u0151ke", "jozsef@example.com", "", "06 30 123 4567"}
+    };
+
+    // --- TESTS ---
+    public void testExactWordFirst() {
+        ContactSnapshot snapshot = snapshot(CONTACTS);
+        int[] hits = FuzzySearch.search(snapshot, 0, snapshot.size(), "smith", 10, 60);
+        assertEquals(3, hits.length);
+
+        // Exact matches in index order, then the mistyped one
+        assertEquals(0, hits[0]);
+        assertEquals(3, hits[1]);
+        assertEquals(1, hits[2]);
+    }
+
+    public void testMistypedWords() {
+        ContactSnapshot snapshot = snapshot(CONTACTS);
+        int[] hits = FuzzySearch.search(snapshot, 0, snapshot.size(), "jhon smiht", 10, 60);
+        assertTrue(hits.length != 0);
+        assertEquals(0, hits[0]);
+    }
+
+    public void testFoldedKey() {
+        ContactSnapshot snapshot = snapshot(CONTACTS);
+        int[] hits = FuzzySearch.search(snapshot, 0, snapshot.size(), "jozef szoke", 10, 60);
+        assertEquals(1, hits.length);
+        assertEquals(4, hits[0]);
+    }
+
+    public void testAllWordsRequired() {
+        ContactSnapshot snapshot = snapshot(CONTACTS);
+        assertEquals(0, FuzzySearch.search(snapshot, 0, snapshot.size(), "jane smith", 10, 60).length);
+    }
+
+    public void testRange() {
+        ContactSnapshot snapshot = snapshot(CONTACTS);
+        int[] hits = FuzzySearch.search(snapshot, 1, 4, "smith", 10, 60);
+        assertEquals(2, hits.length);
+        assertEquals(3, hits[0]);
+        assertEquals(1, hits[1]);
+        assertEquals(0, FuzzySearch.search(snapshot, 4, 5, "smith", 10, 60).length);
+    }
+
+    public void testMaxResults() {
+        ContactSnapshot snapshot = snapshot(CONTACTS);
+        int[] hits = FuzzySearch.search(snapshot, 0, snapshot.size(), "smith", 1, 60);
+        assertEquals(1, hits.length);
+        assertEquals(0, hits[0]);
+        assertEquals(0, FuzzySearch.search(snapshot, 0, snapshot.size(), "smith", 0, 60).length);
+        assertEquals(0, FuzzySearch.search(snapshot, 0, snapshot.size(), " - ", 10, 60).length);
+    }
+
+    // --- HELPERS ---
+
+    /**
+     * Returns the snapshot of contacts given by their name, email address,
+     * company and phone number.
+     */
+    static final ContactSnapshot snapshot(String[][] rows) {
+        ArrayList<GmailContact> list = new ArrayList<GmailContact>();
+        for (int i = 0; i < rows.length; i++) {
+            GmailContact contact = new GmailContact();
+            contact.name = rows[i][0];
+            contact.email = rows[i][1];
+            contact.company = rows[i][2];
+            contact.phone = rows[i][3];
+            list.add(contact);
+        }
+        return new ContactSnapshot(1, new ContactTable(list), null, null);
+    }
+}
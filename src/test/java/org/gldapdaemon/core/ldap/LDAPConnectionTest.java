@@ -0,0 +1,189 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of a client connection: several requests (and partial requests) in
+ * one read, and the responses of pipelined requests sent in request order.
+ */
+public class LDAPConnectionTest extends TestCase {
+
+    // --- VARIABLES ---
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private LDAPConnection connection;
+
+    protected void setUp() throws Exception {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        connection = new LDAPConnection(server.accept(), 4096);
+    }
+
+    protected void tearDown() throws Exception {
+        client.close();
+        connection.channel.close();
+        server.close();
+    }
+
+    // --- TESTS ---
+    public void testSeveralRequestsPerRead() throws Exception {
+        byte[] first = request(1, 10);
+        byte[] second = request(2, 200);
+        byte[] third = request(3, 0);
+        send(concat(concat(first, second), third));
+        assertRequest(first);
+        assertRequest(second);
+        assertRequest(third);
+        assertEquals(null, connection.nextRequest());
+    }
+
+    public void testPartialRequest() throws Exception {
+        byte[] first = request(1, 10);
+        byte[] second = request(2, 3000);
+
+        // The first request and a part of the second one
+        byte[] bytes = concat(first, second);
+        send(copy(bytes, 0, first.length + 1));
+        assertRequest(first);
+        assertEquals(null, connection.nextRequest());
+        send(copy(bytes, first.length + 1, 100));
+        assertEquals(null, connection.nextRequest());
+        send(copy(bytes, first.length + 101, bytes.length - first.length - 101));
+        assertRequest(second);
+        assertEquals(null, connection.nextRequest());
+    }
+
+    public void testTooLargeRequest() throws Exception {
+        send(copy(request(1, 5000), 0, 4));
+        try {
+            connection.nextRequest();
+            fail("Too large request accepted!");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testResponseOrder() throws Exception {
+        PendingRequest first = connection.add(1);
+        PendingRequest second = connection.add(2);
+        PendingRequest third = connection.add(3);
+        assertFalse(connection.isIdle());
+
+        // Completed out of order, sent in request order
+        LDAPResponse response = done(2);
+        second.complete(response);
+        assertEquals(null, connection.nextResponse());
+        first.complete(done(1));
+        assertEquals(1, connection.nextResponse().messageId);
+        assertEquals(1, connection.nextResponse().messageId);
+        connection.responseSent();
+        assertSame(response, connection.nextResponse());
+        connection.responseSent();
+        assertEquals(null, connection.nextResponse());
+        third.complete(done(3));
+        assertEquals(3, connection.nextResponse().messageId);
+        connection.responseSent();
+        assertTrue(connection.isIdle());
+    }
+
+    public void testSkippedResponses() throws Exception {
+        PendingRequest abandoned = connection.add(1);
+        PendingRequest silent = connection.add(2);
+        PendingRequest last = connection.add(3);
+        connection.abandon(1);
+        abandoned.complete(done(1));
+
+        // Abandon requests have no response
+        silent.complete(null);
+        last.complete(done(3));
+        assertEquals(3, connection.nextResponse().messageId);
+    }
+
+    public void testPipelineLimit() throws Exception {
+        int count = 0;
+        while (connection.canAccept()) {
+            connection.add(++count);
+        }
+        assertEquals(32, count);
+        try {
+            connection.add(1);
+            fail("Duplicate message ID accepted!");
+        } catch (IOException expected) {
+        }
+    }
+
+    // --- HELPERS ---
+
+    /**
+     * Returns an LDAPMessage (message ID and an octet string of the given
+     * size, the framing does not look into the operation).
+     */
+    private static final byte[] request(int messageId, int size) {
+        int length = BerCodec.sizeOf(BerCodec.integerLength(messageId)) + BerCodec.sizeOf(size);
+        ByteBuffer buffer = ByteBuffer.allocate(BerCodec.sizeOf(length));
+        BerCodec.writeHeader(buffer, BerCodec.SEQUENCE_TAG, length);
+        BerCodec.writeInteger(buffer, BerCodec.INTEGER_TAG, messageId);
+        BerCodec.writeOctetString(buffer, new byte[size]);
+        return buffer.array();
+    }
+
+    private static final LDAPResponse done(int messageId) {
+        return new ResultResponse(messageId, ResultResponse.SEARCH_RESULT_DONE, ResultResponse.SUCCESS, null);
+    }
+
+    /**
+     * Sends the bytes from the client and reads them on the connection.
+     */
+    private final void send(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+        long expected = connection.bytesIn + bytes.length;
+        while (connection.bytesIn < expected) {
+            assertTrue(connection.read() >= 0);
+        }
+    }
+
+    private final void assertRequest(byte[] expected) throws IOException {
+        ByteBuffer request = connection.nextRequest();
+        assertTrue(request != null);
+        byte[] bytes = new byte[request.remaining()];
+        request.get(bytes);
+        assertEquals(PagedResultsTest.hex(expected), PagedResultsTest.hex(bytes));
+        connection.consume();
+    }
+
+    private static final byte[] copy(byte[] bytes, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, offset, copy, 0, length);
+        return copy;
+    }
+
+    private static final byte[] concat(byte[] a, byte[] b) {
+        byte[] bytes = new byte[a.length + b.length];
+        System.arraycopy(a, 0, bytes, 0, a.length);
+        System.arraycopy(b, 0, bytes, a.length, b.length);
+        return bytes;
+    }
+}
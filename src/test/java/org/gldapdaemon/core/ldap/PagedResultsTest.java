@@ -0,0 +1,185 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the Simple Paged Results control (request parser, response
+ * encoder and cursors) and of the size and time limits of a search.
+ */
+public class PagedResultsTest extends TestCase {
+
+    // --- CONSTANTS ---
+    private static final byte[] COOKIE = {1, 2, 3};
+    private static final Executor INLINE = new Executor() {
+
+        public final void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    // --- TESTS ---
+    public void testParseControl() throws Exception {
+        byte[] message = message(control(PagedResults.OID, true, 25, COOKIE));
+        PagedResults paging = PagedResults.parse(message, 0, message.length);
+        assertEquals(25, paging.size);
+        assertTrue(paging.critical);
+        assertEquals(hex(COOKIE), hex(paging.cookie));
+
+        // Not critical, empty cookie (first page), after another control
+        message = message(concat(control("1.2.3.4", false, 1, COOKIE), control(PagedResults.OID, false, 10,
+                new byte[0])));
+        paging = PagedResults.parse(message, 0, message.length);
+        assertEquals(10, paging.size);
+        assertFalse(paging.critical);
+        assertEquals(0, paging.cookie.length);
+    }
+
+    public void testNoControl() throws Exception {
+        byte[] message = message(null);
+        assertEquals(null, PagedResults.parse(message, 0, message.length));
+        message = message(control("1.2.3.4", true, 10, COOKIE));
+        assertEquals(null, PagedResults.parse(message, 0, message.length));
+    }
+
+    public void testResponseControl() throws Exception {
+
+        // The response value has the same layout (estimate and cookie)
+        byte[] controls = PagedResults.encodeResponse(300, COOKIE);
+        byte[] message = tlv(0x30, concat(tlv(0x02, new byte[] {7}), concat(tlv(0x65, new byte[0]), controls)));
+        PagedResults paging = PagedResults.parse(message, 0, message.length);
+        assertEquals(300, paging.size);
+        assertEquals(hex(COOKIE), hex(paging.cookie));
+    }
+
+    public void testCursors() {
+        LDAPConnection connection = new LDAPConnection(null, 1024);
+        PagedResults.Cursor[] cursors = new PagedResults.Cursor[9];
+        byte[][] cookies = new byte[cursors.length][];
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = new PagedResults.Cursor(null, new int[0], i, ResultResponse.SUCCESS);
+            cookies[i] = connection.openCursor(cursors[i]);
+        }
+
+        // The oldest cursor is dropped, a cookie can be used once
+        assertEquals(null, connection.takeCursor(cookies[0]));
+        assertSame(cursors[1], connection.takeCursor(cookies[1]));
+        assertEquals(null, connection.takeCursor(cookies[1]));
+        assertSame(cursors[8], connection.takeCursor(cookies[8]));
+        assertEquals(null, connection.takeCursor(COOKIE));
+    }
+
+    public void testSizeLimit() throws Exception {
+        ContactSnapshot snapshot = snapshot();
+        int[] bounds = {0, snapshot.size()};
+        ResultCache.Result found = ParallelSearch.search(INLINE, 1, 1000, snapshot, SearchFilter.ALL, bounds,
+                10, 0);
+        assertEquals(ResultResponse.SIZE_LIMIT_EXCEEDED, found.resultCode);
+        assertEquals(10, found.hits.length);
+        assertEquals(9, found.hits[9]);
+
+        // Parallel chunks are merged in order, then cut to the limit
+        found = ParallelSearch.search(INLINE, 4, 50, snapshot, SearchFilter.ALL, bounds, 120, 0);
+        assertEquals(ResultResponse.SIZE_LIMIT_EXCEEDED, found.resultCode);
+        assertEquals(120, found.hits.length);
+        assertEquals(119, found.hits[119]);
+
+        // Exactly the limit, and no limit
+        found = ParallelSearch.search(INLINE, 1, 1000, snapshot, SearchFilter.ALL, bounds, snapshot.size(), 0);
+        assertEquals(ResultResponse.SUCCESS, found.resultCode);
+        found = ParallelSearch.search(INLINE, 4, 50, snapshot, SearchFilter.ALL, bounds, 0, 0);
+        assertEquals(ResultResponse.SUCCESS, found.resultCode);
+        assertEquals(snapshot.size(), found.hits.length);
+    }
+
+    public void testTimeLimit() throws Exception {
+        ContactSnapshot snapshot = snapshot();
+        int[] bounds = {0, snapshot.size()};
+        ResultCache.Result found = ParallelSearch.search(INLINE, 1, 1000, snapshot, SearchFilter.ALL, bounds,
+                0, 1);
+        assertEquals(ResultResponse.TIME_LIMIT_EXCEEDED, found.resultCode);
+        assertTrue(found.hits.length < snapshot.size());
+    }
+
+    public void testResponseTimeLimit() throws Exception {
+        ContactSnapshot snapshot = snapshot();
+        int[] hits = {0, 1, 2};
+        SearchResponse response = new SearchResponse(5, snapshot.entries, hits, 0, hits.length, false,
+                EncodedEntries.ALL_ATTRIBUTES, ResultResponse.SUCCESS, null, 1);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        assertTrue(response.fill(buffer));
+        buffer.flip();
+
+        // Only the search done message, with the time limit exceeded code
+        byte[] expected = new byte[ResultResponse.size(5, ResultResponse.TIME_LIMIT_EXCEEDED, new byte[0], null)];
+        ResultResponse.write(ByteBuffer.wrap(expected), 5, ResultResponse.SEARCH_RESULT_DONE,
+                ResultResponse.TIME_LIMIT_EXCEEDED, new byte[0], null);
+        assertEquals(hex(expected), hex(toArray(buffer)));
+    }
+
+    // --- HELPERS ---
+    private static final ContactSnapshot snapshot() {
+        return new ContactSnapshot(1, new ContactTable(ContactStreamTest.contacts()), null, null);
+    }
+
+    /**
+     * Returns a search request message with the given Controls element.
+     */
+    private static final byte[] message(byte[] control) {
+        byte[] body = concat(tlv(0x02, new byte[] {2}), tlv(0x63, new byte[] {0x04, 0x00}));
+        if (control != null) {
+            body = concat(body, tlv(0xa0, control));
+        }
+        return tlv(0x30, body);
+    }
+
+    private static final byte[] control(String oid, boolean critical, int size, byte[] cookie) {
+        byte[] value = tlv(0x30, concat(tlv(0x02, new byte[] {(byte) size}), tlv(0x04, cookie)));
+        byte[] fields = concat(tlv(0x04, oid.getBytes()), tlv(0x01, new byte[] {(byte) (critical ? 0xff : 0)}));
+        return tlv(0x30, concat(fields, tlv(0x04, value)));
+    }
+
+    private static final byte[] tlv(int tag, byte[] value) {
+        ByteBuffer buffer = ByteBuffer.allocate(BerCodec.sizeOf(value.length));
+        BerCodec.writeHeader(buffer, tag, value.length);
+        buffer.put(value);
+        return buffer.array();
+    }
+
+    private static final byte[] concat(byte[] a, byte[] b) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(a, 0, a.length);
+        out.write(b, 0, b.length);
+        return out.toByteArray();
+    }
+
+    private static final byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    static final String hex(byte[] bytes) {
+        StringBuffer buffer = new StringBuffer(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.append(Integer.toHexString((bytes[i] & 0xff) | 0x100).substring(1));
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,94 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+
+import junit.framework.TestCase;
+
+import org.apache.directory.shared.ldap.codec.LdapConstants;
+
+/**
+ * Reverse lookup tests of the phone number index (suffix searches of the
+ * normalized numbers, with the fallback columns).
+ */
+public class PhoneIndexTest extends TestCase {
+
+    // --- CONSTANTS ---
+    private static final String[][] CONTACTS = {
+        {"John Smith", "", "", "+1 (555) 010-1000"},
+        {"Jon Smyth", "", "", "+1 555.010.2000"},
+        {"Jane Doe", "", "", ""},
+        {"Sales", "", "", "555-3000"},
+        {"J\u00f3zsef Sz\u0151ke", "", "", "06 30 123 4567"}
+    };
+    private static final int EQUALITY = LdapConstants.EQUALITY_MATCH_FILTER;
+
+    // --- VARIABLES ---
+    private ContactSnapshot snapshot;
+
+    protected void setUp() throws Exception {
+        snapshot = FuzzySearchTest.snapshot(CONTACTS);
+    }
+
+    // --- TESTS ---
+    public void testSuffix() {
+        PrefixIndex phones = snapshot.phones();
+        assertEquals("[0]", TrigramIndexTest.toString(phones.candidates(ContactSnapshot.reverse("0101000"))));
+        assertEquals("[0, 1, 3]", TrigramIndexTest.toString(phones.candidates(ContactSnapshot.reverse("000"))));
+        assertEquals("[4]", TrigramIndexTest.toString(phones.candidates(ContactSnapshot.reverse("1234567"))));
+        assertEquals("[]", TrigramIndexTest.toString(phones.candidates(ContactSnapshot.reverse("9999"))));
+        assertEquals(3, phones.estimate(ContactSnapshot.reverse("000")));
+    }
+
+    public void testNormalization() {
+        assertEquals("15550101000", ContactSnapshot.digits("+1 (555) 010-1000"));
+        assertEquals("5550101000", ContactSnapshot.digits("5550101000"));
+        assertEquals("", ContactSnapshot.digits("n/a"));
+        assertEquals("0001", ContactSnapshot.reverse("1000"));
+        assertEquals("7", ContactSnapshot.reverse("7"));
+    }
+
+    public void testNumberMatching() {
+
+        // Equal digits, or a suffix of at least seven digits
+        assertEquals("[0]", matches(SearchFilter.assertion(EQUALITY, "homePhone", "1-555-010-1000")));
+        assertEquals("[0]", matches(SearchFilter.assertion(EQUALITY, "homePhone", "010 1000")));
+        assertEquals("[]", matches(SearchFilter.assertion(EQUALITY, "homePhone", "1000")));
+        assertEquals("[4]", matches(SearchFilter.assertion(EQUALITY, "homePhone", "30 123 4567")));
+
+        // The mobile number falls back to the phone number
+        assertEquals("[1]", matches(SearchFilter.assertion(EQUALITY, "mobile", "(555) 010-2000")));
+    }
+
+    public void testCandidatesOfFilters() {
+        SearchFilter filter = SearchFilter.assertion(EQUALITY, "homePhone", "30 123 4567");
+        assertEquals("[4]", TrigramIndexTest.toString(filter.candidates(snapshot)));
+        filter = SearchFilter.substring("homePhone", null, new String[0], "010-2000");
+        assertEquals("[1]", TrigramIndexTest.toString(filter.candidates(snapshot)));
+    }
+
+    // --- HELPERS ---
+    private final String matches(SearchFilter filter) {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append('[');
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (filter.matches(snapshot, i)) {
+                if (buffer.length() != 1) {
+                    buffer.append(", ");
+                }
+                buffer.append(i);
+            }
+        }
+        return buffer.append(']').toString();
+    }
+}
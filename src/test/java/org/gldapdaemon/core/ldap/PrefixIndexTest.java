@@ -0,0 +1,69 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+
+import junit.framework.TestCase;
+
+/**
+ * Lookup tests of the word prefix index (starts-with candidates, estimates
+ * and the first word of multi-word prefixes).
+ */
+public class PrefixIndexTest extends TestCase {
+
+    // --- CONSTANTS ---
+    private static final String[][] CONTACTS = {
+        {"John Smith", "john.smith@example.com", "Acme", ""},
+        {"Jon Smyth", "jon@example.com", "", ""},
+        {"Jane Doe", "jane.doe@example.com", "Acme", ""},
+        {"", "sales@example.com", "Smith & Sons", ""},
+        {"J\u00f3zsef Sz\u0151ke", "jozsef@example.com", "", ""}
+    };
+
+    // --- VARIABLES ---
+    private PrefixIndex index;
+
+    protected void setUp() throws Exception {
+        index = FuzzySearchTest.snapshot(CONTACTS).words();
+    }
+
+    // --- TESTS ---
+    public void testCandidates() {
+        assertEquals("[0, 1, 4]", TrigramIndexTest.toString(index.candidates("jo")));
+        assertEquals("[0, 1, 3]", TrigramIndexTest.toString(index.candidates("sm")));
+        assertEquals("[0, 3]", TrigramIndexTest.toString(index.candidates("smith")));
+        assertEquals("[0, 1, 3, 4]", TrigramIndexTest.toString(index.candidates("s")));
+        assertEquals("[]", TrigramIndexTest.toString(index.candidates("smithy")));
+        assertEquals("[]", TrigramIndexTest.toString(index.candidates("zz")));
+
+        // Words of the email addresses and folded names
+        assertEquals("[3]", TrigramIndexTest.toString(index.candidates("sales")));
+        assertEquals("[4]", TrigramIndexTest.toString(index.candidates("szo")));
+    }
+
+    public void testFirstWord() {
+        assertEquals("[0, 1, 4]", TrigramIndexTest.toString(index.candidates("jo smith")));
+        assertEquals("[2]", TrigramIndexTest.toString(index.candidates("doe.")));
+        assertEquals(null, index.candidates(" jo"));
+        assertEquals(null, index.candidates(""));
+    }
+
+    public void testEstimate() {
+        assertEquals(2, index.estimate("smith"));
+        assertEquals(0, index.estimate("zz"));
+        assertEquals(-1, index.estimate("*"));
+
+        // Postings of every token of the range (an upper bound)
+        assertTrue(index.estimate("jo") >= 3);
+    }
+}
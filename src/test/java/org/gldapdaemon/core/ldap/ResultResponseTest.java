@@ -0,0 +1,79 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Encoding tests of the single LDAPResult response, written at once and in
+ * parts into buffers smaller than the message.
+ */
+public class ResultResponseTest extends TestCase {
+
+    // --- TESTS ---
+    public void testLargeBuffer() throws Exception {
+        ResultResponse response = response();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        assertTrue(response.fill(buffer));
+        assertEquals(response.sizeHint(), buffer.position());
+
+        // Nothing more to write
+        assertTrue(response.fill(buffer));
+        assertEquals(response.sizeHint(), buffer.position());
+    }
+
+    public void testSmallBuffers() throws Exception {
+        for (int size = 1; size < 16; size++) {
+            assertEquals(encoded(), fillInParts(response(), size));
+        }
+    }
+
+    // --- HELPERS ---
+    private static final ResultResponse response() {
+        return new ResultResponse(300, ResultResponse.SEARCH_RESULT_DONE, ResultResponse.OPERATIONS_ERROR,
+                "Unable to process request!");
+    }
+
+    private static final String encoded() throws Exception {
+        ResultResponse response = response();
+        ByteBuffer buffer = ByteBuffer.allocate(response.sizeHint());
+        assertTrue(response.fill(buffer));
+        return hex(buffer.array(), buffer.position());
+    }
+
+    private static final String fillInParts(ResultResponse response, int size) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        boolean done = false;
+        for (int i = 0; !done; i++) {
+            assertTrue(i < 1000);
+            buffer.clear();
+            done = response.fill(buffer);
+            out.write(buffer.array(), 0, buffer.position());
+        }
+        byte[] bytes = out.toByteArray();
+        return hex(bytes, bytes.length);
+    }
+
+    private static final String hex(byte[] bytes, int length) {
+        StringBuffer buffer = new StringBuffer(length * 2);
+        for (int i = 0; i < length; i++) {
+            buffer.append(Integer.toHexString((bytes[i] & 0xff) | 0x100).substring(1));
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,210 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.apache.directory.shared.ldap.codec.LdapConstants;
+
+/**
+ * Compiler and matching tests of the search filters (attribute aliases,
+ * folded values, name words, phone numbers, index candidates and the
+ * normalized form).
+ */
+public class SearchFilterTest extends TestCase {
+
+    // --- CONSTANTS ---
+    private static final String[][] CONTACTS = {
+        {"John Smith", "john.smith@example.com", "Acme", "+1 (555) 010-1000"},
+        {"Jon Smyth", "jon@example.com", "", "+1 (555) 010-2000"},
+        {"Jane Doe", "jane.doe@example.com", "Acme", ""},
+        {"", "sales@example.com", "Smith & Sons", "555-3000"},
+        {"J\u00f3zsef Sz\u0151ke", "jozsef@example.com", "", "06 30 123 4567"}
+    };
+    private static final int EQUALITY = LdapConstants.EQUALITY_MATCH_FILTER;
+
+    // --- VARIABLES ---
+    private ContactSnapshot snapshot;
+
+    protected void setUp() throws Exception {
+        snapshot = FuzzySearchTest.snapshot(CONTACTS);
+    }
+
+    // --- TESTS ---
+    public void testEquality() {
+        assertMatches("[0]", SearchFilter.assertion(EQUALITY, "cn", "JOHN SMITH"));
+        assertMatches("[0]", SearchFilter.assertion(EQUALITY, "displayName;lang-en", "john smith"));
+        assertMatches("[4]", SearchFilter.assertion(EQUALITY, "cn", "jozsef szoke"));
+        assertMatches("[]", SearchFilter.assertion(EQUALITY, "cn", "john"));
+
+        // The company is the name of a contact without a name
+        assertMatches("[3]", SearchFilter.assertion(EQUALITY, "cn", "smith & sons"));
+        assertMatches("[1, 4]", SearchFilter.assertion(LdapConstants.APPROX_MATCH_FILTER, "o", ""));
+    }
+
+    public void testNameWords() {
+        assertMatches("[0, 3]", SearchFilter.assertion(EQUALITY, "sn", "Smith"));
+        assertMatches("[0]", SearchFilter.assertion(EQUALITY, "givenName", "john"));
+        assertMatches("[]", SearchFilter.assertion(EQUALITY, "sn", "smi"));
+        assertMatches("[0, 3]", SearchFilter.substring("sn", null, new String[0], "ith"));
+        assertMatches("[0, 1, 3]", SearchFilter.substring("sn", "sm", new String[0], "th"));
+        assertMatches("[0, 3]", SearchFilter.substring("surname", "sm", new String[] {"i"}, null));
+        assertMatches("[]", SearchFilter.substring("sn", "mith", new String[0], null));
+
+        // Runs of whole words
+        assertMatches("[3]", SearchFilter.substring("sn", "smith", new String[0], "sons"));
+        assertMatches("[]", SearchFilter.substring("sn", "smith", new String[] {"s"}, "son"));
+        assertMatches("[4]", SearchFilter.substring("sn", null, new String[] {"z"}, "ke"));
+    }
+
+    public void testSubstring() {
+        assertMatches("[0, 1, 4]", SearchFilter.substring("cn", "jo", new String[0], null));
+        assertMatches("[0, 2]", SearchFilter.substring("mail", null, new String[] {"."}, ".com"));
+        assertMatches("[0, 3]", SearchFilter.substring("cn", null, new String[] {"mit"}, null));
+        assertMatches("[]", SearchFilter.substring("cn", "john", new String[] {"h"}, "h"));
+        assertMatches("[0]", SearchFilter.substring("cn", "john", new String[] {"s"}, "h"));
+        assertMatches("[4]", SearchFilter.substring("cn", "J\u00d3", new String[0], "\u0150KE"));
+    }
+
+    public void testPhoneNumbers() {
+        assertMatches("[0]", SearchFilter.assertion(EQUALITY, "homePhone", "555 010 1000"));
+        assertMatches("[0]", SearchFilter.assertion(EQUALITY, "homePhone", "+1-555-010-1000"));
+        assertMatches("[3]", SearchFilter.assertion(EQUALITY, "homePhone", "555 3000"));
+        assertMatches("[]", SearchFilter.assertion(EQUALITY, "homePhone", "3000"));
+        assertMatches("[0, 1]", SearchFilter.substring("homePhone", "1555", new String[0], null));
+        assertMatches("[4]", SearchFilter.substring("homePhone", null, new String[0], "123-4567"));
+
+        // The mobile number falls back to the phone number
+        assertMatches("[1]", SearchFilter.substring("mobile", null, new String[] {"(010) 2"}, null));
+    }
+
+    public void testOrdering() {
+        assertMatches("[3]", SearchFilter.assertion(LdapConstants.GREATER_OR_EQUAL_FILTER, "cn", "k"));
+        assertMatches("[2]", SearchFilter.assertion(LdapConstants.LESS_OR_EQUAL_FILTER, "cn", "jo"));
+    }
+
+    public void testPresent() {
+        assertMatches("[0, 2, 3]", SearchFilter.present("company"));
+        assertMatches("[0, 1, 2, 3, 4]", SearchFilter.present("cn"));
+        assertMatches("[]", SearchFilter.present("title"));
+        assertMatches("[]", SearchFilter.present("unknown"));
+        assertSame(SearchFilter.ALL, SearchFilter.present("objectClass"));
+    }
+
+    public void testAllContacts() {
+        assertSame(SearchFilter.ALL, SearchFilter.assertion(EQUALITY, "cn", "@"));
+        assertSame(SearchFilter.ALL, SearchFilter.substring("mail", null, new String[] {"@"}, null));
+        assertSame(SearchFilter.ALL, SearchFilter.assertion(EQUALITY, "objectClass", "inetOrgPerson"));
+        assertMatches("[]", SearchFilter.assertion(EQUALITY, "objectClass", "device"));
+        assertMatches("[]", SearchFilter.assertion(LdapConstants.EXTENSIBLE_MATCH_FILTER, "cn", "john"));
+    }
+
+    public void testConnectors() {
+        SearchFilter john = SearchFilter.substring("cn", "jo", new String[0], null);
+        SearchFilter acme = SearchFilter.assertion(EQUALITY, "o", "acme");
+        assertMatches("[0]", SearchFilter.and(new SearchFilter[] {john, acme}));
+        assertMatches("[0, 1, 2, 4]", SearchFilter.or(new SearchFilter[] {john, acme}));
+        assertMatches("[2, 3]", SearchFilter.not(john));
+        assertMatches("[3]", SearchFilter.not(SearchFilter.or(new SearchFilter[] {john, acme})));
+        assertMatches("[0, 1, 2, 3, 4]", SearchFilter.and(new SearchFilter[0]));
+        assertMatches("[]", SearchFilter.or(new SearchFilter[0]));
+    }
+
+    public void testNormalizedForm() {
+        SearchFilter john = SearchFilter.substring("CN", "Jo", new String[0], null);
+        SearchFilter acme = SearchFilter.assertion(EQUALITY, "company", "ACME");
+        assertEquals(SearchFilter.and(new SearchFilter[] {john, acme}).toString(),
+                SearchFilter.and(new SearchFilter[] {
+                    SearchFilter.assertion(EQUALITY, "o", "acme"),
+                    SearchFilter.substring("commonName", "jo", new String[0], null)}).toString());
+        assertFalse(SearchFilter.and(new SearchFilter[] {john, acme}).toString().equals(
+                SearchFilter.or(new SearchFilter[] {john, acme}).toString()));
+        assertEquals("(0=j\\*o*)", SearchFilter.substring("cn", "j*o", new String[0], null).toString());
+    }
+
+    public void testCandidates() {
+        SearchFilter[] filters = {
+            SearchFilter.substring("cn", "jo", new String[0], null),
+            SearchFilter.substring("mail", null, new String[] {"smith"}, null),
+            SearchFilter.assertion(EQUALITY, "o", "acme"),
+            SearchFilter.assertion(EQUALITY, "sn", "smith"),
+            SearchFilter.assertion(EQUALITY, "homePhone", "555 010 1000"),
+            SearchFilter.substring("homePhone", null, new String[0], "123-4567"),
+            SearchFilter.and(new SearchFilter[] {
+                SearchFilter.substring("cn", "jo", new String[0], null),
+                SearchFilter.present("company")})
+        };
+        for (int i = 0; i < filters.length; i++) {
+            int[] candidates = filters[i].candidates(snapshot);
+            if (candidates == null) {
+                continue;
+            }
+            String found = toString(candidates);
+            assertTrue(filters[i] + " " + found, contains(candidates, matches(filters[i])));
+        }
+    }
+
+    public void testFuzzyKey() {
+        assertEquals("jozsef", SearchFilter.and(new SearchFilter[] {
+            SearchFilter.substring("cn", "jo", new String[] {"jozsef"}, null),
+            SearchFilter.assertion(EQUALITY, "o", "acme")}).fuzzyKey());
+        assertEquals(null, SearchFilter.assertion(EQUALITY, "title", "engineer").fuzzyKey());
+    }
+
+    // --- HELPERS ---
+    private final void assertMatches(String expected, SearchFilter filter) {
+        assertEquals(filter.toString(), expected, toString(matches(filter)));
+    }
+
+    private final int[] matches(SearchFilter filter) {
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (filter.matches(snapshot, i)) {
+                list.add(new Integer(i));
+            }
+        }
+        int[] indexes = new int[list.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = list.get(i).intValue();
+        }
+        return indexes;
+    }
+
+    private static final boolean contains(int[] candidates, int[] matches) {
+        for (int i = 0; i < matches.length; i++) {
+            boolean found = false;
+            for (int n = 0; n < candidates.length; n++) {
+                found |= candidates[n] == matches[i];
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final String toString(int[] indexes) {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append('[');
+        for (int i = 0; i < indexes.length; i++) {
+            if (i != 0) {
+                buffer.append(", ");
+            }
+            buffer.append(indexes[i]);
+        }
+        return buffer.append(']').toString();
+    }
+}
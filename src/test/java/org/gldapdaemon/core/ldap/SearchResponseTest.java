@@ -0,0 +1,100 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Streaming tests of the search response: the entries written into small
+ * output buffers (and entries larger than a buffer) must give the same
+ * messages as one large buffer.
+ */
+public class SearchResponseTest extends TestCase {
+
+    // --- CONSTANTS ---
+    private static final int[] HITS = {5, 6, 7, 8, 0};
+
+    // --- VARIABLES ---
+    private ContactSnapshot snapshot;
+
+    protected void setUp() throws Exception {
+        snapshot = new ContactSnapshot(1, new ContactTable(ContactStreamTest.contacts()), null, null);
+    }
+
+    // --- TESTS ---
+    public void testMessages() throws Exception {
+        byte[] bytes = fill(response(EncodedEntries.ALL_ATTRIBUTES, null), 1 << 20);
+
+        // One message per hit, then the search done message
+        int count = 0;
+        int offset = 0;
+        while (offset < bytes.length) {
+            offset += BerCodec.frameLength(bytes, offset, bytes.length - offset);
+            count++;
+        }
+        assertEquals(bytes.length, offset);
+        assertEquals(HITS.length + 1, count);
+    }
+
+    public void testSmallBuffers() throws Exception {
+        String expected = PagedResultsTest.hex(fill(response(EncodedEntries.ALL_ATTRIBUTES, null), 1 << 20));
+        int[] sizes = {4096, 1000, 97};
+        for (int i = 0; i < sizes.length; i++) {
+            assertEquals(expected, PagedResultsTest.hex(fill(response(EncodedEntries.ALL_ATTRIBUTES, null),
+                    sizes[i])));
+        }
+    }
+
+    public void testSelectedAttributes() throws Exception {
+        int mask = EncodedEntries.select(new String[] {"cn"});
+        byte[] controls = PagedResults.encodeResponse(HITS.length, new byte[0]);
+        String expected = PagedResultsTest.hex(fill(response(mask, controls), 1 << 20));
+        assertEquals(expected, PagedResultsTest.hex(fill(response(mask, controls), 64)));
+        assertTrue(expected.length() < PagedResultsTest.hex(fill(response(EncodedEntries.ALL_ATTRIBUTES,
+                controls), 1 << 20)).length());
+    }
+
+    public void testRange() throws Exception {
+        SearchResponse response = new SearchResponse(3, snapshot.entries, HITS, 1, 1, false,
+                EncodedEntries.ALL_ATTRIBUTES, ResultResponse.SUCCESS, null, 0);
+        byte[] bytes = fill(response, 4096);
+        assertEquals(ResultResponse.size(3, ResultResponse.SUCCESS, new byte[0], null), bytes.length);
+    }
+
+    // --- HELPERS ---
+    private final SearchResponse response(int attributes, byte[] controls) {
+        return new SearchResponse(3, snapshot.entries, HITS, 0, HITS.length, false, attributes,
+                ResultResponse.SUCCESS, controls, 0);
+    }
+
+    /**
+     * Fills output buffers of the given size until the response is
+     * complete, returns the written bytes.
+     */
+    private static final byte[] fill(SearchResponse response, int size) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        boolean done = false;
+        for (int i = 0; !done; i++) {
+            assertTrue(i < 100000);
+            buffer.clear();
+            done = response.fill(buffer);
+            out.write(buffer.array(), 0, buffer.position());
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,90 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+// 
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gldapdaemon.core.ldap;
+
+
+import junit.framework.TestCase;
+
+/**
+ * Lookup tests of the trigram substring index (candidates, estimates and
+ * the posting list operations).
+ */
+public class TrigramIndexTest extends TestCase {
+
+    // --- CONSTANTS ---
+    private static final String[][] CONTACTS = {
+        {"John Smith", "john.smith@example.com", "Acme", ""},
+        {"Jon Smyth", "jon@example.com", "", ""},
+        {"Jane Doe", "jane.doe@example.com", "Acme", ""},
+        {"", "sales@example.com", "Smith & Sons", ""},
+        {"J\u00f3zsef Sz\u0151ke", "jozsef@example.com", "", ""}
+    };
+
+    // --- VARIABLES ---
+    private TrigramIndex index;
+
+    protected void setUp() throws Exception {
+        index = FuzzySearchTest.snapshot(CONTACTS).names();
+    }
+
+    // --- TESTS ---
+    public void testCandidates() {
+        assertEquals("[0, 3]", toString(index.candidates("smith")));
+        assertEquals("[0, 2]", toString(index.candidates("acme")));
+        assertEquals("[0, 1, 2, 3, 4]", toString(index.candidates("example")));
+        assertEquals("[]", toString(index.candidates("xyz")));
+
+        // Folded values, and the company in place of the missing name
+        assertEquals("[4]", toString(index.candidates("szoke")));
+        assertEquals("[3]", toString(index.candidates("& sons")));
+    }
+
+    public void testShortKeys() {
+        assertEquals(null, index.candidates("jo"));
+        assertEquals(-1, index.estimate("jo"));
+        assertEquals(-1, index.estimate(""));
+    }
+
+    public void testEstimate() {
+        assertEquals(2, index.estimate("smith"));
+        assertEquals(0, index.estimate("xyz"));
+        assertTrue(index.estimate("example") >= 5);
+    }
+
+    public void testIntersect() {
+        assertEquals("[2, 7]", toString(TrigramIndex.intersect(new int[] {1, 2, 7}, new int[] {2, 3, 7, 9})));
+        assertEquals("[]", toString(TrigramIndex.intersect(new int[] {1}, new int[] {2, 3})));
+        assertEquals("[]", toString(TrigramIndex.intersect(new int[0], new int[] {2, 3})));
+    }
+
+    public void testUnion() {
+        assertEquals("[1, 2, 3, 7, 9]", toString(TrigramIndex.union(new int[] {1, 2, 7}, new int[] {2, 3, 7, 9})));
+        assertEquals("[2, 3]", toString(TrigramIndex.union(new int[0], new int[] {2, 3})));
+    }
+
+    // --- HELPERS ---
+    static final String toString(int[] indexes) {
+        if (indexes == null) {
+            return null;
+        }
+        StringBuffer buffer = new StringBuffer();
+        buffer.append('[');
+        for (int i = 0; i < indexes.length; i++) {
+            if (i != 0) {
+                buffer.append(", ");
+            }
+            buffer.append(indexes[i]);
+        }
+        return buffer.append(']').toString();
+    }
+}